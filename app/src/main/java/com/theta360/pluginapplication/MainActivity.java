@@ -18,6 +18,8 @@ package com.theta360.pluginapplication;
 
 import android.os.Bundle;
 import android.view.KeyEvent;
+import com.theta360.pluginapplication.network.AsyncHttpConnector;
+import com.theta360.pluginapplication.network.HttpConnector;
 import com.theta360.pluginapplication.task.TakePictureTask;
 import com.theta360.pluginapplication.task.TakePictureTask.Callback;
 import com.theta360.pluginlibrary.activity.PluginActivity;
@@ -27,11 +29,20 @@ import com.theta360.pluginlibrary.values.LedColor;
 import com.theta360.pluginlibrary.values.LedTarget;
 
 public class MainActivity extends PluginActivity {
+    private final AsyncHttpConnector mCamera = new AsyncHttpConnector(
+            new HttpConnector("127.0.0.1:8080"));
     private TakePictureTask.Callback mTakePictureTaskCallback = new Callback() {
         @Override
         public void onTakePicture(String fileUrl) {
 
         }
+
+        @Override
+        public void onError(String errorMessage) {
+            // let the user know that the shot was not taken
+            notificationAudioWarning();
+            notificationLedBlink(LedTarget.LED3, LedColor.RED, 1000);
+        }
     };
 
     @Override
@@ -50,7 +61,7 @@ public class MainActivity extends PluginActivity {
                      * To take a static picture, use the takePicture method.
                      * You can receive a fileUrl of the static picture in the callback.
                      */
-                    new TakePictureTask(mTakePictureTaskCallback).execute();
+                    new TakePictureTask(mCamera, mTakePictureTaskCallback).execute();
                 }
             }
 
@@ -0,0 +1,333 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import android.graphics.Bitmap;
+import com.theta360.pluginapplication.model.ImageSize;
+import com.theta360.pluginapplication.network.HttpConnector.ShootResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.json.JSONException;
+
+/**
+ * Asynchronous HTTP connection to device<p>
+ * Each command of {@link HttpConnector} is run on a bounded executor and returns a future, so
+ * that capture, download and processing can be chained without blocking the caller. Shooting and
+ * deletion futures are completed by the status checks of {@link StatusPollScheduler} and
+ * {@link CameraStateWatcher}, so no executor thread waits for the device to finish. A command that
+ * fails completes its future exceptionally with an {@link IOException}.
+ * <p>
+ * Futures are completed on executor or status check threads. Use the asynchronous variants of
+ * the chaining methods with an executor of your own for heavy processing.
+ */
+public class AsyncHttpConnector {
+    /** The device has few cores and its HTTP server handles few requests at once */
+    public final static int DEFAULT_THREAD_COUNT =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public final static int DEFAULT_QUEUE_CAPACITY = 32;
+    private final static long KEEP_ALIVE_SECONDS = 30;
+
+    private final static ThreadPoolExecutor DEFAULT_EXECUTOR = createExecutor(
+            DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_CAPACITY);
+
+    private final HttpConnector mConnector;
+    private final Executor mExecutor;
+
+    /**
+     * Constructor (commands run on an executor shared by all asynchronous connectors)
+     *
+     * @param connector Connector that sends the commands
+     */
+    public AsyncHttpConnector(HttpConnector connector) {
+        this(connector, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param connector Connector that sends the commands
+     * @param executor Executor that runs the commands
+     */
+    public AsyncHttpConnector(HttpConnector connector, Executor executor) {
+        mConnector = connector;
+        mExecutor = executor;
+    }
+
+    /**
+     * Create executor with a bounded number of threads and a bounded queue
+     *
+     * @param threadCount Number of threads
+     * @param queueCapacity Number of commands waiting for a thread (further commands fail with
+     * {@link RejectedExecutionException})
+     * @return Executor
+     */
+    public static ThreadPoolExecutor createExecutor(int threadCount, int queueCapacity) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "HttpConnector-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Acquire connector that sends the commands
+     *
+     * @return Connector
+     */
+    public HttpConnector getConnector() {
+        return mConnector;
+    }
+
+    /**
+     * Take photo
+     *
+     * @return Future completed with the ID of the saved file
+     */
+    public CompletableFuture<String> takePicture() {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        execute(future, () -> {
+            ShootResult result = mConnector.takePicture(new HttpEventListener() {
+                private String mCapturedFileId = null;
+
+                @Override
+                public void onCheckStatus(boolean newStatus) {
+                }
+
+                @Override
+                public void onObjectChanged(String latestCapturedFileId) {
+                    mCapturedFileId = latestCapturedFileId;
+                }
+
+                @Override
+                public void onCompleted() {
+                    future.complete(mCapturedFileId);
+                }
+
+                @Override
+                public void onError(String errorMessage) {
+                    future.completeExceptionally(new IOException(errorMessage));
+                }
+            });
+            if (result != ShootResult.SUCCESS) {
+                future.completeExceptionally(new IOException("takePicture failed: " + result));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Delete specified files
+     *
+     * @param deletedFileIds File ID's
+     * @return Future completed with the deleted file ID's
+     */
+    public CompletableFuture<ArrayList<String>> deleteFiles(ArrayList<String> deletedFileIds) {
+        CompletableFuture<ArrayList<String>> future = new CompletableFuture<>();
+        execute(future, () -> mConnector.deleteFiles(deletedFileIds,
+                new HttpDeleteFileListener() {
+                    @Override
+                    public void onCheckStatus(boolean newStatus) {
+                    }
+
+                    @Override
+                    public void onObjectChanged(ArrayList<String> deletedImages) {
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        future.complete(deletedFileIds);
+                    }
+
+                    @Override
+                    public void onError(String errorMessage) {
+                        future.completeExceptionally(new IOException(errorMessage));
+                    }
+                }));
+        return future;
+    }
+
+    /**
+     * Acquire raw data of specified image
+     *
+     * @param fileId File ID
+     * @param listener Listener for receiving received data count and metadata
+     * @return Future completed with the image data
+     */
+    public CompletableFuture<ImageData> getImage(String fileId, HttpDownloadListener listener) {
+        return supply(() -> {
+            ImageData imageData = mConnector.getImage(fileId, listener);
+            return require(imageData.getRawData() != null ? imageData : null, "getImage");
+        });
+    }
+
+    /**
+     * Download specified image into a file
+     *
+     * @param fileId File ID
+     * @param file Destination file
+     * @param listener Listener for receiving received data count and metadata
+     * @return Future completed with the image data
+     */
+    public CompletableFuture<ImageData> getImage(String fileId, File file,
+            HttpDownloadListener listener) {
+        return supply(() -> require(mConnector.getImage(fileId, file, listener), "getImage"));
+    }
+
+    /**
+     * Acquire thumbnail of specified image
+     *
+     * @param fileId File ID
+     * @return Future completed with the thumbnail
+     */
+    public CompletableFuture<Bitmap> getThumb(String fileId) {
+        return supply(() -> require(mConnector.getThumb(fileId), "getThumb"));
+    }
+
+    /**
+     * Acquire metadata of specified image without downloading the image
+     *
+     * @param fileId File ID
+     * @return Future completed with the metadata
+     */
+    public CompletableFuture<ImageMetadata> getMetadata(String fileId) {
+        return supply(() -> require(mConnector.getMetadata(fileId), "getMetadata"));
+    }
+
+    /**
+     * Acquire list of media files on device
+     *
+     * @return Future completed with the media file list
+     */
+    public CompletableFuture<ArrayList<ImageInfo>> getList() {
+        return supply(mConnector::getList);
+    }
+
+    /**
+     * Acquire storage information of device
+     *
+     * @return Future completed with the storage information
+     */
+    public CompletableFuture<StorageInfo> getStorageInfo() {
+        return supply(() -> require(mConnector.getStorageInfo(), "getStorageInfo"));
+    }
+
+    /**
+     * Acquire device information
+     *
+     * @return Future completed with the device information
+     */
+    public CompletableFuture<DeviceInfo> getDeviceInfo() {
+        return supply(() -> require(mConnector.getDeviceInfo(), "getDeviceInfo"));
+    }
+
+    /**
+     * Acquire device status
+     *
+     * @return Future completed with the device status
+     */
+    public CompletableFuture<CameraState> getCameraState() {
+        return supply(() -> require(mConnector.getCameraState(), "getCameraState"));
+    }
+
+    /**
+     * Acquire currently set shooting size
+     *
+     * @return Future completed with the shooting size
+     */
+    public CompletableFuture<ImageSize> getImageSize() {
+        return supply(() -> require(mConnector.getImageSize(), "getImageSize"));
+    }
+
+    /**
+     * Specify shooting size
+     *
+     * @param imageSize Shooting size
+     * @return Future completed when the request was sent
+     */
+    public CompletableFuture<Void> setImageSize(ImageSize imageSize) {
+        return supply(() -> {
+            mConnector.setImageSize(imageSize);
+            return null;
+        });
+    }
+
+    /**
+     * Acquire live view stream
+     *
+     * @return Future completed with the stream
+     */
+    public CompletableFuture<InputStream> getLivePreview() {
+        return supply(() -> {
+            try {
+                return mConnector.getLivePreview();
+            } catch (IOException | JSONException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, mExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * Run command that completes the future by itself
+     */
+    private void execute(CompletableFuture<?> future, Runnable command) {
+        try {
+            mExecutor.execute(() -> {
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static <T> T require(T result, String command) {
+        if (result == null) {
+            throw new CompletionException(new IOException(command + " failed"));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+/**
+ * Device status class
+ */
+public class CameraState {
+    private String mFingerprint = null;
+    private String mLatestFileUri = "";
+    private String mStorageUri = "";
+
+    /**
+     * Acquire state fingerprint
+     * @return State fingerprint (changes whenever the device status changes)
+     */
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * Set state fingerprint
+     * @param fingerprint State fingerprint
+     */
+    public void setFingerprint(String fingerprint) {
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Acquire URL of the last saved file
+     * @return URL of the last saved file (empty if there is no file)
+     */
+    public String getLatestFileUri() {
+        return mLatestFileUri;
+    }
+
+    /**
+     * Set URL of the last saved file
+     * @param latestFileUri URL of the last saved file
+     */
+    public void setLatestFileUri(String latestFileUri) {
+        mLatestFileUri = latestFileUri;
+    }
+
+    /**
+     * Acquire storage ID
+     * @return Storage ID (changes when the storage is switched or formatted)
+     */
+    public String getStorageUri() {
+        return mStorageUri;
+    }
+
+    /**
+     * Set storage ID
+     * @param storageUri Storage ID
+     */
+    public void setStorageUri(String storageUri) {
+        mStorageUri = storageUri;
+    }
+}
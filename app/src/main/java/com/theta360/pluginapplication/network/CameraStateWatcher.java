@@ -0,0 +1,431 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watcher of device status shared by all users of a connector<p>
+ * One thread checks the state fingerprint with /osc/checkForUpdates, acquires /osc/state only when
+ * the fingerprint changed, and notifies all subscribers of the differences. However many features
+ * watch the device, only one check is sent per interval. The thread runs only while there are
+ * subscribers or deletions waiting for completion. Callbacks are called on the watcher thread.
+ * <p>
+ * A deletion is completed only when the deleted files are no longer found on the device. They are
+ * checked once when the deletion is registered and again each time the fingerprint differs from
+ * the one of the previous check, so changes made by other callers do not complete it.
+ */
+public class CameraStateWatcher {
+    public final static long POLL_INTERVAL_MS = 100;
+    /** Time after which a deletion that does not change the status is given up */
+    private final static long DELETION_TIMEOUT_MS = 60000;
+
+    private final HttpConnector mConnector;
+    private final Object mLock = new Object();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<HttpEventListener> mEventListeners =
+            new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<HttpDeleteFileListener> mDeleteFileListeners =
+            new CopyOnWriteArrayList<>();
+    private final ArrayList<Deletion> mDeletions = new ArrayList<>();
+    private Thread mThread = null;
+    private CameraState mState = null;
+    private boolean mFailed = false;
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param connector Connector used to check the device status
+     */
+    CameraStateWatcher(HttpConnector connector) {
+        mConnector = connector;
+    }
+
+    /**
+     * Add listener of typed change events
+     *
+     * @param listener Listener
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+        startIfNeeded();
+    }
+
+    /**
+     * Remove listener of typed change events
+     *
+     * @param listener Listener
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Add listener notified of each status check and of each newly saved file
+     *
+     * @param listener Listener
+     */
+    public void addEventListener(HttpEventListener listener) {
+        mEventListeners.add(listener);
+        startIfNeeded();
+    }
+
+    /**
+     * Remove listener added by {@link CameraStateWatcher#addEventListener}
+     *
+     * @param listener Listener
+     */
+    public void removeEventListener(HttpEventListener listener) {
+        mEventListeners.remove(listener);
+    }
+
+    /**
+     * Add listener notified of each status check and of files deleted through the connector
+     *
+     * @param listener Listener
+     */
+    public void addDeleteFileListener(HttpDeleteFileListener listener) {
+        mDeleteFileListeners.add(listener);
+        startIfNeeded();
+    }
+
+    /**
+     * Remove listener added by {@link CameraStateWatcher#addDeleteFileListener}
+     *
+     * @param listener Listener
+     */
+    public void removeDeleteFileListener(HttpDeleteFileListener listener) {
+        mDeleteFileListeners.remove(listener);
+    }
+
+    /**
+     * Acquire latest device status seen by the watcher
+     *
+     * @return Device status (null is returned if the watcher has not acquired it yet)
+     */
+    public CameraState getState() {
+        synchronized (mLock) {
+            return mState;
+        }
+    }
+
+    /**
+     * Acquire number of requests sent by the watcher
+     *
+     * @return Number of requests
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Wait for an in-progress deletion to change the device status
+     *
+     * @param deletedFileIds File ID's being deleted
+     * @param listener Listener notified of the status checks and of the completion
+     */
+    void watchDeletion(ArrayList<String> deletedFileIds, HttpDeleteFileListener listener) {
+        synchronized (mLock) {
+            mDeletions.add(new Deletion(deletedFileIds, listener));
+        }
+        startIfNeeded();
+    }
+
+    /**
+     * Notify subscribers of deleted files
+     *
+     * @param deletedFileIds File ID's
+     */
+    void notifyFilesDeleted(ArrayList<String> deletedFileIds) {
+        for (Listener listener : mListeners) {
+            deliver(() -> listener.onFilesDeleted(deletedFileIds));
+        }
+        for (HttpDeleteFileListener listener : mDeleteFileListeners) {
+            deliver(() -> listener.onObjectChanged(deletedFileIds));
+        }
+    }
+
+    private boolean hasSubscribers() {
+        return !mListeners.isEmpty() || !mEventListeners.isEmpty()
+                || !mDeleteFileListeners.isEmpty() || !mDeletions.isEmpty();
+    }
+
+    private void startIfNeeded() {
+        synchronized (mLock) {
+            if (mThread == null) {
+                mThread = new Thread(this::run, "CameraStateWatcher");
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                synchronized (mLock) {
+                    if (!hasSubscribers()) {
+                        stopped();
+                        return;
+                    }
+                }
+                check();
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // let the next subscription start a new thread however this one ended
+            synchronized (mLock) {
+                if (mThread == Thread.currentThread()) {
+                    stopped();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the status when the thread stops, because it is outdated when the thread restarts
+     */
+    private void stopped() {
+        mThread = null;
+        mState = null;
+        mFailed = false;
+    }
+
+    private void check() {
+        CameraState previousState;
+        synchronized (mLock) {
+            previousState = mState;
+        }
+
+        CameraState state = null;
+        boolean update = false;
+        if (previousState == null) {
+            mRequestCount.incrementAndGet();
+            state = mConnector.getCameraState();
+            if (state == null) {
+                notifyError("Failed to acquire device status");
+                return;
+            }
+        } else {
+            mRequestCount.incrementAndGet();
+            String fingerprint = mConnector.checkForUpdates(previousState.getFingerprint());
+            if (fingerprint == null) {
+                notifyError("Failed to check for updates");
+                return;
+            }
+            if (!fingerprint.equals(previousState.getFingerprint())) {
+                mRequestCount.incrementAndGet();
+                state = mConnector.getCameraState();
+                if (state == null) {
+                    notifyError("Failed to acquire device status");
+                    return;
+                }
+                update = true;
+            }
+        }
+
+        String fingerprint = state != null ? state.getFingerprint()
+                : previousState.getFingerprint();
+        ArrayList<Deletion> deletions;
+        synchronized (mLock) {
+            mFailed = false;
+            if (state != null) {
+                mState = state;
+            }
+            deletions = new ArrayList<>(mDeletions);
+        }
+
+        ArrayList<Deletion> completedDeletions = new ArrayList<>();
+        ArrayList<Deletion> timedOutDeletions = new ArrayList<>();
+        ArrayList<Deletion> pendingDeletions = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Deletion deletion : deletions) {
+            boolean timedOut = now - deletion.mStartNanos
+                    >= TimeUnit.MILLISECONDS.toNanos(DELETION_TIMEOUT_MS);
+            // the files are checked a last time before giving up
+            if (!fingerprint.equals(deletion.mCheckedFingerprint) || timedOut) {
+                deletion.mCheckedFingerprint = fingerprint;
+                if (isDeleted(deletion.mFileIds)) {
+                    completedDeletions.add(deletion);
+                    continue;
+                }
+            }
+            if (timedOut) {
+                timedOutDeletions.add(deletion);
+            } else {
+                pendingDeletions.add(deletion);
+            }
+        }
+        synchronized (mLock) {
+            mDeletions.removeAll(completedDeletions);
+            mDeletions.removeAll(timedOutDeletions);
+        }
+
+        boolean changed = update;
+        for (HttpEventListener listener : mEventListeners) {
+            deliver(() -> listener.onCheckStatus(changed));
+        }
+        for (HttpDeleteFileListener listener : mDeleteFileListeners) {
+            deliver(() -> listener.onCheckStatus(changed));
+        }
+        for (Deletion deletion : pendingDeletions) {
+            deliver(() -> deletion.mListener.onCheckStatus(false));
+        }
+        for (Deletion deletion : timedOutDeletions) {
+            deliver(() -> deletion.mListener.onError("Deletion status check timed out"));
+        }
+        for (Deletion deletion : completedDeletions) {
+            mConnector.removeThumbnails(deletion.mFileIds);
+            deliver(() -> deletion.mListener.onCheckStatus(true));
+            deliver(() -> deletion.mListener.onObjectChanged(deletion.mFileIds));
+            deliver(() -> deletion.mListener.onCompleted());
+            notifyFilesDeleted(deletion.mFileIds);
+        }
+        if (state != null && previousState != null) {
+            notifyChanges(previousState, state);
+        }
+    }
+
+    /**
+     * Check that none of the files is found on the device any more
+     *
+     * @return true:All files are deleted, false:A file exists or could not be checked
+     */
+    private boolean isDeleted(ArrayList<String> fileIds) {
+        for (String fileId : fileIds) {
+            mRequestCount.incrementAndGet();
+            Boolean exists = mConnector.fileExists(fileId);
+            if (exists == null || exists) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void notifyChanges(CameraState previousState, CameraState state) {
+        String latestFileUri = state.getLatestFileUri();
+        boolean fileAdded = !latestFileUri.isEmpty()
+                && !latestFileUri.equals(previousState.getLatestFileUri());
+        boolean storageChanged = !state.getStorageUri().equals(previousState.getStorageUri());
+
+        for (Listener listener : mListeners) {
+            deliver(() -> listener.onStateChanged(state));
+            if (fileAdded) {
+                deliver(() -> listener.onFileAdded(latestFileUri));
+            }
+            if (storageChanged) {
+                deliver(() -> listener.onStorageChanged(state.getStorageUri()));
+            }
+        }
+        if (fileAdded) {
+            for (HttpEventListener listener : mEventListeners) {
+                deliver(() -> listener.onObjectChanged(latestFileUri));
+            }
+        }
+    }
+
+    /**
+     * Notify subscribers of an error, once until the next successful check
+     */
+    private void notifyError(String errorMessage) {
+        synchronized (mLock) {
+            if (mFailed) {
+                return;
+            }
+            mFailed = true;
+        }
+        for (Listener listener : mListeners) {
+            deliver(() -> listener.onError(errorMessage));
+        }
+        for (HttpEventListener listener : mEventListeners) {
+            deliver(() -> listener.onError(errorMessage));
+        }
+        for (HttpDeleteFileListener listener : mDeleteFileListeners) {
+            deliver(() -> listener.onError(errorMessage));
+        }
+    }
+
+    /**
+     * Call a subscriber, so that a subscriber that throws does not stop the others
+     */
+    private static void deliver(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Deletion {
+        private final ArrayList<String> mFileIds;
+        private final HttpDeleteFileListener mListener;
+        private final long mStartNanos = System.nanoTime();
+        /** Fingerprint when the files were last checked (null if they were not checked yet) */
+        private String mCheckedFingerprint = null;
+
+        private Deletion(ArrayList<String> fileIds, HttpDeleteFileListener listener) {
+            mFileIds = fileIds;
+            mListener = listener;
+        }
+    }
+
+    /**
+     * Listener of typed change events
+     */
+    public interface Listener {
+        /**
+         * Notifies you that the state fingerprint changed
+         * @param state New device status
+         */
+        default void onStateChanged(CameraState state) {
+        }
+
+        /**
+         * Notifies you that a file was saved
+         * @param fileUri URL of the saved file
+         */
+        default void onFileAdded(String fileUri) {
+        }
+
+        /**
+         * Notifies you that files were deleted through the connector
+         * @param fileIds File ID's
+         */
+        default void onFilesDeleted(ArrayList<String> fileIds) {
+        }
+
+        /**
+         * Notifies you that the storage was switched or formatted
+         * @param storageUri New storage ID
+         */
+        default void onStorageChanged(String storageUri) {
+        }
+
+        /**
+         * Notifies you that the status could not be checked
+         * @param errorMessage Error message
+         */
+        default void onError(String errorMessage) {
+        }
+    }
+}
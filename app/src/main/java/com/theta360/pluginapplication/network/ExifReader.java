@@ -0,0 +1,241 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of the Exif APP1 segment<p>
+ * Only the tags held by {@link ImageMetadata} are read, including the thumbnail that IFD1 points
+ * to. Values that point outside the segment are ignored.
+ */
+class ExifReader {
+    private final static int TAG_MAKE = 0x010F;
+    private final static int TAG_MODEL = 0x0110;
+    private final static int TAG_EXIF_IFD = 0x8769;
+    private final static int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private final static int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private final static int TAG_EXPOSURE_TIME = 0x829A;
+    private final static int TAG_F_NUMBER = 0x829D;
+    private final static int TAG_ISO_SPEED = 0x8827;
+    private final static int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    private final static int TAG_PIXEL_X_DIMENSION = 0xA002;
+    private final static int TAG_PIXEL_Y_DIMENSION = 0xA003;
+
+    private final static int TYPE_ASCII = 2;
+    private final static int TYPE_SHORT = 3;
+    private final static int TYPE_LONG = 4;
+    private final static int TYPE_RATIONAL = 5;
+
+    private final static int IFD_ENTRY_SIZE = 12;
+
+    private final byte[] mData;
+    /** Position of the TIFF header, which offsets are relative to */
+    private final int mBase;
+    private final int mEnd;
+    private boolean mLittleEndian;
+
+    private ExifReader(byte[] data, int tiffOffset, int end) {
+        mData = data;
+        mBase = tiffOffset;
+        mEnd = end;
+    }
+
+    /**
+     * Read Exif data into metadata
+     *
+     * @param data Data that holds the segment
+     * @param tiffOffset Position of the TIFF header (just after "Exif\0\0")
+     * @param end End position of the segment
+     * @param filePosition Position of data[0] in the image file
+     * @param metadata Metadata that receives the values
+     * @return true:Read, false:Not an Exif structure
+     */
+    static boolean read(byte[] data, int tiffOffset, int end, long filePosition,
+            ImageMetadata metadata) {
+        ExifReader reader = new ExifReader(data, tiffOffset, end);
+        if (end - tiffOffset < 8) {
+            return false;
+        }
+        if (data[tiffOffset] == 'I' && data[tiffOffset + 1] == 'I') {
+            reader.mLittleEndian = true;
+        } else if (data[tiffOffset] != 'M' || data[tiffOffset + 1] != 'M') {
+            return false;
+        }
+        if (reader.readShort(2) != 42) {
+            return false;
+        }
+
+        int exifIfd = -1;
+        int ifd0 = (int) reader.readLong(4);
+        int count = reader.getEntryCount(ifd0);
+        for (int index = 0; index < count; index++) {
+            int entry = ifd0 + 2 + index * IFD_ENTRY_SIZE;
+            switch (reader.readShort(entry)) {
+                case TAG_MAKE:
+                    metadata.setMake(reader.readAscii(entry));
+                    break;
+                case TAG_MODEL:
+                    metadata.setModel(reader.readAscii(entry));
+                    break;
+                case TAG_EXIF_IFD:
+                    exifIfd = (int) reader.readLong(entry + 8);
+                    break;
+            }
+        }
+        // the offset of IFD1 follows the entries of IFD0, unless IFD0 is cut off by the segment end
+        int ifd1 = count > 0 && count == reader.readShort(ifd0)
+                ? (int) reader.readLong(ifd0 + 2 + count * IFD_ENTRY_SIZE) : -1;
+
+        count = reader.getEntryCount(exifIfd);
+        for (int index = 0; index < count; index++) {
+            int entry = exifIfd + 2 + index * IFD_ENTRY_SIZE;
+            switch (reader.readShort(entry)) {
+                case TAG_EXPOSURE_TIME:
+                    metadata.setExposureTime(reader.readRational(entry));
+                    break;
+                case TAG_F_NUMBER:
+                    metadata.setFNumber(reader.readRational(entry));
+                    break;
+                case TAG_ISO_SPEED:
+                    long iso = reader.readInteger(entry);
+                    metadata.setIsoSpeed(iso >= 0 ? (int) iso : null);
+                    break;
+                case TAG_DATE_TIME_ORIGINAL:
+                    metadata.setDateTimeOriginal(reader.readAscii(entry));
+                    break;
+                case TAG_PIXEL_X_DIMENSION:
+                    metadata.setWidth((int) Math.max(0, reader.readInteger(entry)));
+                    break;
+                case TAG_PIXEL_Y_DIMENSION:
+                    metadata.setHeight((int) Math.max(0, reader.readInteger(entry)));
+                    break;
+            }
+        }
+
+        int thumbnailOffset = -1;
+        int thumbnailLength = -1;
+        count = ifd1 > 0 ? reader.getEntryCount(ifd1) : 0;
+        for (int index = 0; index < count; index++) {
+            int entry = ifd1 + 2 + index * IFD_ENTRY_SIZE;
+            switch (reader.readShort(entry)) {
+                case TAG_JPEG_INTERCHANGE_FORMAT:
+                    thumbnailOffset = (int) reader.readInteger(entry);
+                    break;
+                case TAG_JPEG_INTERCHANGE_FORMAT_LENGTH:
+                    thumbnailLength = (int) reader.readInteger(entry);
+                    break;
+            }
+        }
+        if (thumbnailLength > 0 && reader.contains(thumbnailOffset, thumbnailLength)) {
+            byte[] thumbnail = new byte[thumbnailLength];
+            System.arraycopy(data, tiffOffset + thumbnailOffset, thumbnail, 0, thumbnailLength);
+            metadata.setThumbnail(thumbnail);
+            metadata.setThumbnailOffset(filePosition + tiffOffset + thumbnailOffset);
+        }
+
+        return true;
+    }
+
+    /**
+     * Acquire number of entries of IFD
+     *
+     * @param ifd Offset of IFD
+     * @return Number of entries that lie inside the segment
+     */
+    private int getEntryCount(int ifd) {
+        if (!contains(ifd, 2)) {
+            return 0;
+        }
+        int count = readShort(ifd);
+        return Math.max(0, Math.min(count, (mEnd - mBase - ifd - 2) / IFD_ENTRY_SIZE));
+    }
+
+    private String readAscii(int entry) {
+        if (readShort(entry + 2) != TYPE_ASCII) {
+            return null;
+        }
+        int length = (int) readLong(entry + 4);
+        int offset = length <= 4 ? entry + 8 : (int) readLong(entry + 8);
+        if (length <= 0 || !contains(offset, length)) {
+            return null;
+        }
+        // drop the terminating NUL characters
+        while (length > 0 && mData[mBase + offset + length - 1] == 0) {
+            length--;
+        }
+        return new String(mData, mBase + offset, length, StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * Read SHORT or LONG value
+     *
+     * @return Value ("-1" is returned if the type is different)
+     */
+    private long readInteger(int entry) {
+        int type = readShort(entry + 2);
+        if (type == TYPE_SHORT) {
+            return readShort(entry + 8);
+        } else if (type == TYPE_LONG) {
+            return readLong(entry + 8);
+        }
+        return -1;
+    }
+
+    /**
+     * Read RATIONAL value
+     *
+     * @return Value (null is returned if the type is different or the denominator is 0)
+     */
+    private Double readRational(int entry) {
+        if (readShort(entry + 2) != TYPE_RATIONAL) {
+            return null;
+        }
+        int offset = (int) readLong(entry + 8);
+        if (!contains(offset, 8)) {
+            return null;
+        }
+        long numerator = readLong(offset);
+        long denominator = readLong(offset + 4);
+        return denominator != 0 ? (double) numerator / denominator : null;
+    }
+
+    private boolean contains(int offset, int length) {
+        return offset >= 0 && length >= 0 && mEnd - mBase - offset >= length;
+    }
+
+    private int readShort(int offset) {
+        if (!contains(offset, 2)) {
+            return -1;
+        }
+        int first = mData[mBase + offset] & 0xFF;
+        int second = mData[mBase + offset + 1] & 0xFF;
+        return mLittleEndian ? (second << 8) | first : (first << 8) | second;
+    }
+
+    private long readLong(int offset) {
+        if (!contains(offset, 4)) {
+            return -1;
+        }
+        long value = 0;
+        for (int index = 0; index < 4; index++) {
+            int shift = mLittleEndian ? index * 8 : (3 - index) * 8;
+            value |= (long) (mData[mBase + offset + index] & 0xFF) << shift;
+        }
+        return value;
+    }
+}
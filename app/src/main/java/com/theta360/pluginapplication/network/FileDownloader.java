@@ -0,0 +1,716 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download of media files into local files<p>
+ * Data is written through NIO channels with large direct buffers that are reused between
+ * downloads, so the file never has to be held in the heap. Interrupted downloads are resumed
+ * with HTTP Range requests.
+ */
+class FileDownloader {
+    private final static int BUFFER_SIZE = 256 * 1024;
+    private final static int MAX_POOLED_BUFFERS = 4;
+    private final static ConcurrentLinkedQueue<ByteBuffer> sBufferPool =
+            new ConcurrentLinkedQueue<>();
+    private final static String PART_SUFFIX = ".part";
+    private final static String PART_INFO_SUFFIX = ".part.info";
+    private final static int MAX_RESUME_ATTEMPTS = 3;
+    /** Segments are not made smaller than this size */
+    private final static long MIN_SEGMENT_SIZE = 512 * 1024;
+    private final static long SEGMENT_THREAD_KEEP_ALIVE_SECONDS = 30;
+    /** Threads of segmented downloads, shared by all downloads */
+    private final static ThreadPoolExecutor sSegmentExecutor = createSegmentExecutor();
+
+    private final HttpConnector mConnector;
+    private final JpegMetadataParser mParser = new JpegMetadataParser();
+    private String mFileId = null;
+    private boolean mTotalSizeNotified = false;
+
+    /**
+     * Constructor
+     *
+     * @param connector Connector used to send requests
+     */
+    FileDownloader(HttpConnector connector) {
+        mConnector = connector;
+    }
+
+    /**
+     * Download file<p>
+     * Data is first written to "(file).part" and its expected size is saved in
+     * "(file).part.info". If the transfer breaks, it is continued with a Range request, also by a
+     * later call after a restart. The file is renamed to its final name after its length has been
+     * verified. Metadata is parsed from the data as it arrives.
+     *
+     * @param fileId File ID
+     * @param file Destination file
+     * @param listener Listener for receiving received data count and metadata
+     * @return Image data that refers to the destination file
+     * @throws IOException IO error
+     */
+    ImageData download(String fileId, File file, HttpDownloadListener listener)
+            throws IOException {
+        File partFile = new File(file.getPath() + PART_SUFFIX);
+        File infoFile = new File(file.getPath() + PART_INFO_SUFFIX);
+        resetMetadata(fileId);
+
+        for (int attempt = 0; ; attempt++) {
+            try {
+                if (downloadPart(fileId, partFile, infoFile, listener)) {
+                    break;
+                }
+            } catch (IOException e) {
+                if (attempt >= MAX_RESUME_ATTEMPTS) {
+                    throw e;
+                }
+                e.printStackTrace();
+            }
+        }
+
+        infoFile.delete();
+        return complete(partFile, file, listener);
+    }
+
+    /**
+     * Download file with several concurrent Range requests<p>
+     * The file is preallocated and each segment is written at its offset. A segment whose transfer
+     * breaks is continued from where it stopped. If the device does not support Range requests,
+     * the file is downloaded with a single request. A segmented download cannot be resumed by a
+     * later call, so partial data of an earlier download is discarded first, and the partial data
+     * is deleted when the download fails.
+     *
+     * @param fileId File ID
+     * @param file Destination file
+     * @param listener Listener for receiving received data count and metadata (called from
+     * several threads, but never at the same time)
+     * @param segmentCount Number of concurrent requests
+     * @return Image data that refers to the destination file
+     * @throws IOException IO error
+     */
+    ImageData downloadSegmented(String fileId, File file, HttpDownloadListener listener,
+            int segmentCount) throws IOException {
+        File partFile = new File(file.getPath() + PART_SUFFIX);
+        File infoFile = new File(file.getPath() + PART_INFO_SUFFIX);
+        long startTime = System.nanoTime();
+        resetMetadata(fileId);
+
+        // acquire total size with a one byte range
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("Range", "bytes=0-0");
+        HttpConnectionPool.Response response = mConnector.sendRequest("GET", fileId, headers,
+                null);
+        InputStream is = response.getInputStream();
+        long totalSize;
+        try {
+            if (response.getResponseCode() == 200) {
+                // Range is not supported, the whole file is already being sent
+                is.close();
+                is = null;
+                return download(fileId, file, listener);
+            } else if (response.getResponseCode() != 206) {
+                throw new IOException("HTTP " + response.getResponseCode() + " for " + fileId);
+            }
+            totalSize = parseContentRangeTotal(response.getHeader("Content-Range"));
+            while (is.read() >= 0) {
+                // read to the end so that the connection can be reused
+            }
+        } finally {
+            if (is != null) {
+                is.close();
+            }
+        }
+        if (totalSize < 0) {
+            return download(fileId, file, listener);
+        }
+
+        segmentCount = (int) Math.max(1, Math.min(segmentCount, totalSize / MIN_SEGMENT_SIZE));
+        listener.onTotalSize(totalSize);
+        final HttpDownloadListener sharedListener = new HttpDownloadListener() {
+            @Override
+            public synchronized void onTotalSize(long size) {
+                listener.onTotalSize(size);
+            }
+
+            @Override
+            public synchronized void onDataReceived(int size) {
+                listener.onDataReceived(size);
+            }
+
+            @Override
+            public synchronized void onMetadataReceived(ImageMetadata metadata) {
+                listener.onMetadataReceived(metadata);
+            }
+        };
+
+        // a preallocated file left by an earlier download has the expected length but not the data
+        infoFile.delete();
+        partFile.delete();
+        RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+        ArrayList<Future<Long>> futures = new ArrayList<>();
+        boolean completed = false;
+        try {
+            raf.setLength(totalSize);
+            final FileChannel channel = raf.getChannel();
+            long segmentSize = (totalSize + segmentCount - 1) / segmentCount;
+            for (int index = 0; index < segmentCount; index++) {
+                final long start = index * segmentSize;
+                final long end = Math.min(totalSize, start + segmentSize) - 1;
+                // the first segment holds the metadata
+                final JpegMetadataParser parser = start == 0 ? mParser : null;
+                futures.add(sSegmentExecutor.submit(
+                        () -> downloadSegment(fileId, channel, start, end, sharedListener,
+                                parser)));
+            }
+            long received = 0;
+            for (Future<Long> future : futures) {
+                received += future.get();
+            }
+            if (received != totalSize) {
+                throw new IOException("Received " + received + " of " + totalSize + " bytes");
+            }
+            completed = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<Long> future : futures) {
+                future.cancel(true);
+            }
+            raf.close();
+            if (!completed) {
+                partFile.delete();
+            }
+        }
+
+        mConnector.getSegmentTuner().record(segmentCount, totalSize,
+                System.nanoTime() - startTime);
+
+        return complete(partFile, file, listener);
+    }
+
+    /**
+     * Download one segment of a file
+     *
+     * @param fileId File ID
+     * @param channel Destination channel
+     * @param start First byte position of the segment
+     * @param end Last byte position of the segment
+     * @param listener Listener for receiving received data count and metadata
+     * @param parser Parser fed with the segment (null if the segment holds no metadata)
+     * @return Number of bytes received
+     * @throws IOException IO error
+     */
+    private long downloadSegment(String fileId, FileChannel channel, long start, long end,
+            HttpDownloadListener listener, JpegMetadataParser parser) throws IOException {
+        final long[] received = new long[1];
+        HttpDownloadListener segmentListener = new HttpDownloadListener() {
+            @Override
+            public void onTotalSize(long totalSize) {
+            }
+
+            @Override
+            public void onDataReceived(int size) {
+                received[0] += size;
+                listener.onDataReceived(size);
+            }
+
+            @Override
+            public void onMetadataReceived(ImageMetadata metadata) {
+                listener.onMetadataReceived(metadata);
+            }
+        };
+
+        for (int attempt = 0; ; attempt++) {
+            long position = start + received[0];
+            HashMap<String, String> headers = new HashMap<>();
+            headers.put("Range", "bytes=" + position + "-" + end);
+            InputStream is = null;
+            try {
+                HttpConnectionPool.Response response = mConnector.sendRequest("GET", fileId,
+                        headers, null);
+                is = response.getInputStream();
+                if (response.getResponseCode() != 206 || parseContentRangeStart(
+                        response.getHeader("Content-Range")) != position) {
+                    throw new IOException("Range not satisfied for " + fileId);
+                }
+                transfer(is, channel, position, segmentListener, parser);
+                if (start + received[0] != end + 1) {
+                    throw new IOException("Segment " + start + "-" + end + " is incomplete");
+                }
+                return received[0];
+            } catch (IOException e) {
+                if (attempt >= MAX_RESUME_ATTEMPTS) {
+                    throw e;
+                }
+                e.printStackTrace();
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Move a completely downloaded file to its final name
+     *
+     * @param partFile File of the downloaded data
+     * @param file Destination file
+     * @param listener Listener for receiving metadata
+     * @return Image data that refers to the destination file
+     * @throws IOException IO error
+     */
+    private ImageData complete(File partFile, File file, HttpDownloadListener listener)
+            throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to replace " + file);
+        }
+        if (!partFile.renameTo(file)) {
+            throw new IOException("Failed to rename " + partFile);
+        }
+
+        ImageData imageData = new ImageData();
+        imageData.setFile(file);
+
+        if (!mParser.isDone()) {
+            // the metadata was not complete in the received data, which happens only when the
+            // file ends before the image data
+            resetMetadata(mFileId);
+            parseFile(file);
+            listener.onMetadataReceived(mParser.getMetadata());
+        }
+        imageData.setPose(mParser.getMetadata());
+
+        return imageData;
+    }
+
+    /**
+     * Download the missing part of a file
+     *
+     * @param fileId File ID
+     * @param partFile File of the partial data
+     * @param infoFile File of the expected size of the partial data
+     * @param listener Listener for receiving received data count
+     * @return true:Completed, false:Restart needed
+     * @throws IOException IO error
+     */
+    private boolean downloadPart(String fileId, File partFile, File infoFile,
+            HttpDownloadListener listener) throws IOException {
+        PartInfo partInfo = PartInfo.read(infoFile);
+        long offset = 0;
+        if (partInfo != null && partFile.exists()) {
+            offset = Math.min(partFile.length(), partInfo.mExpectedSize);
+        } else {
+            partInfo = null;
+            partFile.delete();
+        }
+
+        InputStream is = null;
+        FileChannel channel = null;
+
+        try {
+            // send HTTP GET
+            HashMap<String, String> headers = null;
+            if (partInfo != null) {
+                headers = new HashMap<>();
+                headers.put("Range", "bytes=" + offset + "-");
+                if (partInfo.mValidator != null) {
+                    headers.put("If-Range", partInfo.mValidator);
+                }
+            }
+            HttpConnectionPool.Response response = mConnector.sendRequest("GET", fileId, headers,
+                    null);
+            is = response.getInputStream();
+
+            int responseCode = response.getResponseCode();
+            if (responseCode == 416 && partInfo != null && offset == partInfo.mExpectedSize) {
+                // partial data is already complete
+                notifyTotalSize(listener, partInfo.mExpectedSize, offset);
+                return true;
+            } else if (responseCode == 416 && partInfo != null) {
+                // the file on the device is shorter than the partial data, start over
+                infoFile.delete();
+                partFile.delete();
+                return false;
+            } else if (responseCode == 206 && partInfo != null) {
+                long start = parseContentRangeStart(response.getHeader("Content-Range"));
+                long total = parseContentRangeTotal(response.getHeader("Content-Range"));
+                if (start != offset || (total >= 0 && total != partInfo.mExpectedSize)) {
+                    // file on the device changed, start over
+                    infoFile.delete();
+                    partFile.delete();
+                    return false;
+                }
+            } else if (responseCode == 200) {
+                // start from the beginning (the device ignored the range or the file changed)
+                offset = 0;
+                partInfo = new PartInfo();
+                partInfo.mExpectedSize = response.getContentLength();
+                partInfo.mValidator = response.getHeader("ETag");
+                if (partInfo.mValidator == null) {
+                    partInfo.mValidator = response.getHeader("Last-Modified");
+                }
+                if (partInfo.mExpectedSize >= 0) {
+                    partInfo.write(infoFile);
+                } else {
+                    infoFile.delete();
+                }
+            } else {
+                throw new IOException("HTTP " + responseCode + " for " + fileId);
+            }
+
+            notifyTotalSize(listener, partInfo.mExpectedSize, offset);
+
+            channel = new RandomAccessFile(partFile, "rw").getChannel();
+            channel.truncate(offset);
+            if (offset == 0) {
+                resetMetadata(mFileId);
+            } else if (!mParser.isDone() && mParser.getConsumedSize() != offset) {
+                // continue parsing from the data received by an earlier call
+                resetMetadata(mFileId);
+                parseFile(partFile);
+                if (mParser.isDone()) {
+                    listener.onMetadataReceived(mParser.getMetadata());
+                }
+            }
+            long written = transfer(is, channel, offset, listener, mParser);
+            long size = offset + written;
+            if (partInfo.mExpectedSize >= 0 && size != partInfo.mExpectedSize) {
+                throw new IOException("Received " + size + " of " + partInfo.mExpectedSize
+                        + " bytes");
+            }
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Write stream to file channel
+     *
+     * @param is Source stream
+     * @param channel Destination channel
+     * @param position Position in the destination where writing starts
+     * @param listener Listener for receiving received data count and metadata
+     * @param parser Parser fed with the data until it finishes (null if not needed)
+     * @return Number of bytes written
+     * @throws IOException IO error
+     */
+    static long transfer(InputStream is, FileChannel channel, long position,
+            HttpDownloadListener listener, JpegMetadataParser parser) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(is);
+        ByteBuffer buffer = acquireBuffer();
+        long written = 0;
+
+        try {
+            int length;
+            while ((length = source.read(buffer)) >= 0) {
+                if (length > 0) {
+                    if (parser != null && !parser.isDone()) {
+                        ByteBuffer received = buffer.duplicate();
+                        received.flip();
+                        received.position(received.limit() - length);
+                        if (!parser.feed(received)) {
+                            listener.onMetadataReceived(parser.getMetadata());
+                        }
+                    }
+                    listener.onDataReceived(length);
+                }
+                if (!buffer.hasRemaining()) {
+                    written += flush(buffer, channel, position + written);
+                }
+            }
+            written += flush(buffer, channel, position + written);
+        } catch (IOException e) {
+            // keep the data already received so that the download can be resumed
+            flush(buffer, channel, position + written);
+            throw e;
+        } finally {
+            releaseBuffer(buffer);
+        }
+
+        return written;
+    }
+
+    private static int flush(ByteBuffer buffer, FileChannel channel, long position)
+            throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+        buffer.clear();
+        return length;
+    }
+
+    /**
+     * Prepare metadata parser for a file
+     */
+    private void resetMetadata(String fileId) {
+        mFileId = fileId;
+        ImageMetadata metadata = new ImageMetadata();
+        metadata.setFileId(fileId);
+        mParser.reset();
+        mParser.setMetadata(metadata);
+    }
+
+    /**
+     * Feed metadata parser with the data saved in a file
+     */
+    private void parseFile(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            mParser.parse(fis);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Notify total size and the data received before this call, once per download
+     */
+    private void notifyTotalSize(HttpDownloadListener listener, long totalSize, long received) {
+        if (mTotalSizeNotified) {
+            return;
+        }
+        mTotalSizeNotified = true;
+        listener.onTotalSize(totalSize);
+        if (received > 0) {
+            listener.onDataReceived((int) Math.min(received, Integer.MAX_VALUE));
+        }
+    }
+
+    /**
+     * Acquire first byte position of "Content-Range: bytes start-end/total"
+     */
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        int hyphen = contentRange.indexOf('-');
+        try {
+            return Long.parseLong(contentRange.substring(6, hyphen).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Acquire total size of "Content-Range: bytes start-end/total"
+     */
+    private static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.indexOf('/');
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static ThreadPoolExecutor createSegmentExecutor() {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(SegmentTuner.MAX_SEGMENTS,
+                SegmentTuner.MAX_SEGMENTS, SEGMENT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable,
+                            "FileDownloader-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = sBufferPool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        return buffer;
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        if (sBufferPool.size() < MAX_POOLED_BUFFERS) {
+            sBufferPool.offer(buffer);
+        }
+    }
+
+    /**
+     * Selection of the number of segments from measured throughput<p>
+     * Throughput is averaged for each number of segments. The number is increased while each step
+     * improves throughput by more than {@link SegmentTuner#IMPROVEMENT_RATIO}, and otherwise the
+     * number with the best throughput is used.
+     */
+    static class SegmentTuner {
+        final static int MAX_SEGMENTS = 8;
+        private final static int INITIAL_SEGMENTS = 2;
+        private final static double IMPROVEMENT_RATIO = 1.1d;
+        private final static double SMOOTHING = 0.3d;
+        /** Files smaller than this size do not show the effect of segmentation */
+        private final static long MIN_MEASURED_SIZE = 4 * 1024 * 1024;
+
+        /** Average throughput for each number of segments (unit: bytes/sec, 0 if not measured) */
+        private final double[] mThroughput = new double[MAX_SEGMENTS + 1];
+        private int mSegmentCount = INITIAL_SEGMENTS;
+
+        /**
+         * Acquire number of segments for the next download
+         *
+         * @return Number of segments
+         */
+        synchronized int getSegmentCount() {
+            return mSegmentCount;
+        }
+
+        /**
+         * Record result of a download
+         *
+         * @param segmentCount Number of segments used
+         * @param size Downloaded size (unit: bytes)
+         * @param elapsedNanos Time taken (unit: ns)
+         */
+        synchronized void record(int segmentCount, long size, long elapsedNanos) {
+            if (size < MIN_MEASURED_SIZE || elapsedNanos <= 0 || segmentCount > MAX_SEGMENTS) {
+                return;
+            }
+            double throughput = size * 1e9d / elapsedNanos;
+            double average = mThroughput[segmentCount];
+            mThroughput[segmentCount] = average == 0 ? throughput
+                    : average + (throughput - average) * SMOOTHING;
+
+            boolean improved = segmentCount == 1 || mThroughput[segmentCount - 1] == 0
+                    || mThroughput[segmentCount]
+                    > mThroughput[segmentCount - 1] * IMPROVEMENT_RATIO;
+            if (improved && segmentCount < MAX_SEGMENTS && mThroughput[segmentCount + 1] == 0) {
+                // try one more segment
+                mSegmentCount = segmentCount + 1;
+                return;
+            }
+
+            int best = segmentCount;
+            for (int count = 1; count <= MAX_SEGMENTS; count++) {
+                if (mThroughput[count] > mThroughput[best]) {
+                    best = count;
+                }
+            }
+            mSegmentCount = best;
+        }
+    }
+
+    /**
+     * Expected size and validator of a partial download
+     */
+    private static class PartInfo {
+        private final static int VERSION = 1;
+
+        private long mExpectedSize = -1;
+        private String mValidator = null;
+
+        private static PartInfo read(File infoFile) {
+            if (!infoFile.exists()) {
+                return null;
+            }
+            DataInputStream dis = null;
+            try {
+                dis = new DataInputStream(new FileInputStream(infoFile));
+                if (dis.readInt() != VERSION) {
+                    return null;
+                }
+                PartInfo partInfo = new PartInfo();
+                partInfo.mExpectedSize = dis.readLong();
+                partInfo.mValidator = dis.readBoolean() ? dis.readUTF() : null;
+                return partInfo;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                if (dis != null) {
+                    try {
+                        dis.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+
+        private void write(File infoFile) throws IOException {
+            DataOutputStream dos = new DataOutputStream(new FileOutputStream(infoFile));
+            try {
+                dos.writeInt(VERSION);
+                dos.writeLong(mExpectedSize);
+                dos.writeBoolean(mValidator != null);
+                if (mValidator != null) {
+                    dos.writeUTF(mValidator);
+                }
+            } finally {
+                dos.close();
+            }
+        }
+    }
+}
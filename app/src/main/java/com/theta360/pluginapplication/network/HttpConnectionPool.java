@@ -0,0 +1,711 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive HTTP/1.1 connection pool<p>
+ * Sockets whose response body has been read to the end are kept and reused for the next request
+ * to the same host. Idle sockets are closed when they exceed the keep-alive duration or the
+ * maximum number of idle connections per host. The pool can be shared by threads; idle sockets of
+ * each host are locked separately.
+ * <p>
+ * An idle socket is checked before it is reused. If the device closed it after the check anyway,
+ * only GET and HEAD requests are sent again on a new connection: a command such as
+ * camera.takePicture may already have been received, so its failure is returned to the caller.
+ */
+public class HttpConnectionPool {
+    public final static int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+    public final static long DEFAULT_KEEP_ALIVE_DURATION_MS = 5000;
+    private final static int CONNECT_TIMEOUT_MS = 10000;
+    /** Time without any received data after which a request fails */
+    public final static int DEFAULT_READ_TIMEOUT_MS = 30000;
+    /** Time waited for data when checking whether an idle socket was closed by the device */
+    private final static int HEALTH_CHECK_TIMEOUT_MS = 1;
+    private final static int BUFFER_SIZE = 8192;
+
+    private final int mMaxIdleConnections;
+    private final long mKeepAliveDurationMs;
+    private final int mReadTimeoutMs;
+    private final ConcurrentHashMap<String, ArrayDeque<PooledSocket>> mIdleSockets =
+            new ConcurrentHashMap<>();
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mReusedCount = new AtomicLong();
+    private final AtomicLong mConnectCount = new AtomicLong();
+    private final AtomicLong mStaleCount = new AtomicLong();
+
+    /**
+     * Constructor (uses default pool size and keep-alive duration)
+     */
+    public HttpConnectionPool() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_DURATION_MS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxIdleConnections Maximum number of idle connections kept per host
+     * @param keepAliveDurationMs Time after which an idle connection is evicted (unit: ms)
+     */
+    public HttpConnectionPool(int maxIdleConnections, long keepAliveDurationMs) {
+        this(maxIdleConnections, keepAliveDurationMs, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxIdleConnections Maximum number of idle connections kept per host
+     * @param keepAliveDurationMs Time after which an idle connection is evicted (unit: ms)
+     * @param readTimeoutMs Time without any received data after which a request fails with
+     * {@link java.net.SocketTimeoutException} (unit: ms, "0" waits forever)
+     */
+    public HttpConnectionPool(int maxIdleConnections, long keepAliveDurationMs,
+            int readTimeoutMs) {
+        mMaxIdleConnections = maxIdleConnections;
+        mKeepAliveDurationMs = keepAliveDurationMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Send HTTP request
+     *
+     * @param method Method
+     * @param url URL
+     * @param headers Additional request headers (null if there are none)
+     * @param body Request body (null if there is no body)
+     * @return Response (must be closed after the body has been read)
+     * @throws IOException IO error
+     */
+    public Response execute(String method, URL url, Map<String, String> headers, byte[] body)
+            throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = host + ":" + port;
+        mRequestCount.incrementAndGet();
+
+        PooledSocket pooled = takeIdle(key);
+        if (pooled != null) {
+            try {
+                Response response = exchange(pooled, key, method, url, headers, body);
+                mReusedCount.incrementAndGet();
+                return response;
+            } catch (StaleConnectionException e) {
+                // the device closed the idle connection after the health check
+                pooled.close();
+                mStaleCount.incrementAndGet();
+                if (!isIdempotent(method)) {
+                    throw new EOFException("Connection closed by device");
+                }
+            }
+        }
+
+        mConnectCount.incrementAndGet();
+        pooled = new PooledSocket(host, port, mReadTimeoutMs);
+        try {
+            return exchange(pooled, key, method, url, headers, body);
+        } catch (StaleConnectionException e) {
+            pooled.close();
+            throw new EOFException("Connection closed by device");
+        }
+    }
+
+    /**
+     * Close idle connections that exceeded the keep-alive duration
+     */
+    public void evictIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (ArrayDeque<PooledSocket> sockets : mIdleSockets.values()) {
+            synchronized (sockets) {
+                Iterator<PooledSocket> iterator = sockets.iterator();
+                while (iterator.hasNext()) {
+                    PooledSocket socket = iterator.next();
+                    if (now - socket.mIdleSince > mKeepAliveDurationMs) {
+                        iterator.remove();
+                        socket.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all idle connections
+     */
+    public void evictAll() {
+        for (ArrayDeque<PooledSocket> sockets : mIdleSockets.values()) {
+            synchronized (sockets) {
+                for (PooledSocket socket : sockets) {
+                    socket.close();
+                }
+                sockets.clear();
+            }
+        }
+    }
+
+    /**
+     * Acquire number of requests sent through the pool
+     *
+     * @return Number of requests
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Acquire number of requests sent on a reused connection
+     *
+     * @return Number of requests
+     */
+    public long getReusedCount() {
+        return mReusedCount.get();
+    }
+
+    /**
+     * Acquire number of TCP connections opened
+     *
+     * @return Number of connections
+     */
+    public long getConnectCount() {
+        return mConnectCount.get();
+    }
+
+    /**
+     * Acquire number of reused connections found closed by the device
+     *
+     * @return Number of connections
+     */
+    public long getStaleCount() {
+        return mStaleCount.get();
+    }
+
+    /**
+     * Acquire ratio of requests sent on a reused connection
+     *
+     * @return Reuse ratio (0.0 to 1.0)
+     */
+    public double getReuseRatio() {
+        long requestCount = mRequestCount.get();
+        if (requestCount == 0) {
+            return 0.0d;
+        }
+        return (double) mReusedCount.get() / requestCount;
+    }
+
+    private PooledSocket takeIdle(String key) {
+        ArrayDeque<PooledSocket> sockets = mIdleSockets.get(key);
+        if (sockets == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (sockets) {
+            while (!sockets.isEmpty()) {
+                // most recently used socket is the least likely to be closed by the device
+                PooledSocket socket = sockets.pollLast();
+                if (now - socket.mIdleSince <= mKeepAliveDurationMs && socket.isHealthy()) {
+                    return socket;
+                }
+                if (now - socket.mIdleSince <= mKeepAliveDurationMs) {
+                    mStaleCount.incrementAndGet();
+                }
+                socket.close();
+            }
+        }
+        return null;
+    }
+
+    private void release(String key, PooledSocket socket) {
+        socket.mIdleSince = System.currentTimeMillis();
+        ArrayDeque<PooledSocket> sockets = mIdleSockets.computeIfAbsent(key,
+                k -> new ArrayDeque<>());
+        synchronized (sockets) {
+            sockets.addLast(socket);
+            while (sockets.size() > mMaxIdleConnections) {
+                sockets.pollFirst().close();
+            }
+        }
+    }
+
+    /**
+     * Whether a request can be sent again without changing the device state
+     */
+    private static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("HEAD");
+    }
+
+    private Response exchange(PooledSocket socket, String key, String method, URL url,
+            Map<String, String> headers, byte[] body) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        String file = url.getFile();
+        sb.append(method).append(' ').append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(url.getAuthority()).append("\r\n");
+        sb.append("Connection: keep-alive\r\n");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        if (body != null || method.equals("POST")) {
+            sb.append("Content-Length: ").append(body != null ? body.length : 0).append("\r\n");
+        }
+        sb.append("\r\n");
+
+        Response response;
+        socket.mResponseStarted = false;
+        try {
+            socket.mOutput.write(sb.toString().getBytes(StandardCharsets.US_ASCII));
+            if (body != null) {
+                socket.mOutput.write(body);
+            }
+            socket.mOutput.flush();
+            response = readResponseHead(socket, key);
+        } catch (StaleConnectionException e) {
+            throw e;
+        } catch (IOException e) {
+            if (socket.mUseCount > 0 && !socket.mResponseStarted) {
+                throw new StaleConnectionException();
+            }
+            socket.close();
+            throw e;
+        }
+
+        if (method.equals("HEAD") || response.mCode == 204 || response.mCode == 304) {
+            response.mBody = new FixedLengthInputStream(response, 0);
+        } else if ("chunked".equalsIgnoreCase(response.getHeader("Transfer-Encoding"))) {
+            response.mBody = new ChunkedInputStream(response);
+        } else if (response.getHeader("Content-Length") != null) {
+            long length = response.getContentLength();
+            if (length < 0) {
+                socket.close();
+                throw new IOException("Invalid Content-Length: "
+                        + response.getHeader("Content-Length"));
+            }
+            response.mBody = new FixedLengthInputStream(response, length);
+        } else {
+            // body is delimited by the end of the connection
+            response.mKeepAlive = false;
+            response.mBody = new UntilCloseInputStream(response);
+        }
+        if (response.mBody instanceof FixedLengthInputStream
+                && ((FixedLengthInputStream) response.mBody).mRemaining == 0) {
+            response.mComplete = true;
+        }
+        socket.mUseCount++;
+
+        return response;
+    }
+
+    private Response readResponseHead(PooledSocket socket, String key) throws IOException {
+        while (true) {
+            String statusLine = readLine(socket.mInput);
+            if (statusLine == null) {
+                if (socket.mUseCount > 0) {
+                    throw new StaleConnectionException();
+                }
+                throw new EOFException("Unexpected end of stream");
+            }
+            socket.mResponseStarted = true;
+
+            String[] status = statusLine.split(" ", 3);
+            if (status.length < 2) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            Response response = new Response(this, socket, key);
+            try {
+                response.mCode = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid status line: " + statusLine);
+            }
+            response.mKeepAlive = !status[0].equals("HTTP/1.0");
+
+            String line;
+            while ((line = readLine(socket.mInput)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                    response.mHeaders.put(name, line.substring(colon + 1).trim());
+                }
+            }
+
+            String connection = response.getHeader("Connection");
+            if (connection != null) {
+                if (connection.equalsIgnoreCase("close")) {
+                    response.mKeepAlive = false;
+                } else if (connection.equalsIgnoreCase("keep-alive")) {
+                    response.mKeepAlive = true;
+                }
+            }
+
+            // skip interim responses such as "100 Continue"
+            if (response.mCode >= 200 || response.mCode < 100) {
+                return response;
+            }
+        }
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = is.read()) != -1) {
+            if (c == '\n') {
+                int length = sb.length();
+                if (length > 0 && sb.charAt(length - 1) == '\r') {
+                    sb.setLength(length - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * HTTP response
+     */
+    public static class Response implements Closeable {
+        private final HttpConnectionPool mPool;
+        private final PooledSocket mSocket;
+        private final String mKey;
+        private final Map<String, String> mHeaders = new HashMap<>();
+        private int mCode;
+        private boolean mKeepAlive;
+        private boolean mComplete;
+        private boolean mClosed;
+        private InputStream mBody;
+
+        private Response(HttpConnectionPool pool, PooledSocket socket, String key) {
+            mPool = pool;
+            mSocket = socket;
+            mKey = key;
+        }
+
+        /**
+         * Acquire HTTP status code
+         *
+         * @return Status code
+         */
+        public int getResponseCode() {
+            return mCode;
+        }
+
+        /**
+         * Acquire response header
+         *
+         * @param name Header name (case insensitive)
+         * @return Header value (null is returned if the header is not present)
+         */
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        /**
+         * Acquire length of response body
+         *
+         * @return Content length ("-1" is returned if unknown)
+         */
+        public long getContentLength() {
+            String length = getHeader("Content-Length");
+            if (length == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * Acquire response body
+         *
+         * @return Stream of response body. Closing it closes the response.
+         */
+        public InputStream getInputStream() {
+            return mBody;
+        }
+
+        /**
+         * Close response<p>
+         * The connection returns to the pool if the body has been read to the end. Otherwise the
+         * connection is closed.
+         */
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            if (mComplete && mKeepAlive) {
+                mPool.release(mKey, mSocket);
+            } else {
+                mSocket.close();
+            }
+        }
+    }
+
+    private static class PooledSocket {
+        private final Socket mSocket;
+        private final InputStream mInput;
+        private final OutputStream mOutput;
+        private long mIdleSince;
+        private int mUseCount;
+        private boolean mResponseStarted;
+
+        private final int mReadTimeoutMs;
+
+        private PooledSocket(String host, int port, int readTimeoutMs) throws IOException {
+            mSocket = new Socket();
+            mReadTimeoutMs = readTimeoutMs;
+            try {
+                mSocket.setTcpNoDelay(true);
+                mSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                mSocket.setSoTimeout(readTimeoutMs);
+                mInput = new BufferedInputStream(mSocket.getInputStream(), BUFFER_SIZE);
+                mOutput = new BufferedOutputStream(mSocket.getOutputStream(), BUFFER_SIZE);
+            } catch (IOException e) {
+                mSocket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Check that the device has not closed the idle socket
+         *
+         * @return true:Socket can be reused, false:Socket was closed or has unexpected data
+         */
+        private boolean isHealthy() {
+            if (mSocket.isClosed() || mSocket.isInputShutdown()) {
+                return false;
+            }
+            try {
+                if (mInput.available() > 0) {
+                    // no data is expected between responses
+                    return false;
+                }
+                mSocket.setSoTimeout(HEALTH_CHECK_TIMEOUT_MS);
+                try {
+                    // end of stream or unexpected data
+                    mInput.read();
+                    return false;
+                } catch (SocketTimeoutException e) {
+                    // nothing received, the connection is still open
+                    return true;
+                } finally {
+                    mSocket.setSoTimeout(mReadTimeoutMs);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private void close() {
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class StaleConnectionException extends IOException {
+    }
+
+    /**
+     * Body delimited by Content-Length
+     */
+    private static class FixedLengthInputStream extends InputStream {
+        private final Response mResponse;
+        private long mRemaining;
+
+        private FixedLengthInputStream(Response response, long length) {
+            mResponse = response;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int c = mResponse.mSocket.mInput.read();
+            if (c == -1) {
+                throw new EOFException("Unexpected end of body");
+            }
+            consumed(1);
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int length = mResponse.mSocket.mInput.read(b, off, (int) Math.min(len, mRemaining));
+            if (length == -1) {
+                throw new EOFException("Unexpected end of body");
+            }
+            consumed(length);
+            return length;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(mResponse.mSocket.mInput.available(), mRemaining);
+        }
+
+        @Override
+        public void close() {
+            mResponse.close();
+        }
+
+        private void consumed(int length) {
+            mRemaining -= length;
+            if (mRemaining == 0) {
+                mResponse.mComplete = true;
+            }
+        }
+    }
+
+    /**
+     * Body sent with chunked transfer coding
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final Response mResponse;
+        private long mChunkRemaining = 0;
+        private boolean mEnd = false;
+
+        private ChunkedInputStream(Response response) {
+            mResponse = response;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!prepareChunk()) {
+                return -1;
+            }
+            int c = mResponse.mSocket.mInput.read();
+            if (c == -1) {
+                throw new EOFException("Unexpected end of chunk");
+            }
+            mChunkRemaining--;
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!prepareChunk()) {
+                return -1;
+            }
+            int length = mResponse.mSocket.mInput.read(b, off, (int) Math.min(len, mChunkRemaining));
+            if (length == -1) {
+                throw new EOFException("Unexpected end of chunk");
+            }
+            mChunkRemaining -= length;
+            return length;
+        }
+
+        @Override
+        public void close() {
+            mResponse.close();
+        }
+
+        private boolean prepareChunk() throws IOException {
+            if (mEnd) {
+                return false;
+            }
+            if (mChunkRemaining > 0) {
+                return true;
+            }
+
+            InputStream input = mResponse.mSocket.mInput;
+            String line = readLine(input);
+            if (line != null && line.isEmpty()) {
+                // CRLF that terminates the previous chunk
+                line = readLine(input);
+            }
+            if (line == null) {
+                throw new EOFException("Unexpected end of chunked body");
+            }
+            int extension = line.indexOf(';');
+            String size = extension >= 0 ? line.substring(0, extension) : line;
+            try {
+                mChunkRemaining = Long.parseLong(size.trim(), 16);
+            } catch (NumberFormatException e) {
+                mChunkRemaining = -1;
+            }
+            if (mChunkRemaining < 0) {
+                mResponse.close();
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (mChunkRemaining == 0) {
+                // skip trailers
+                String trailer;
+                while ((trailer = readLine(input)) != null && !trailer.isEmpty()) {
+                }
+                mEnd = true;
+                mResponse.mComplete = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Body delimited by the end of the connection
+     */
+    private static class UntilCloseInputStream extends InputStream {
+        private final Response mResponse;
+
+        private UntilCloseInputStream(Response response) {
+            mResponse = response;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mResponse.mSocket.mInput.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return mResponse.mSocket.mInput.read(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            mResponse.close();
+        }
+    }
+}
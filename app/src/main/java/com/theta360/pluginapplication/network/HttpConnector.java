@@ -18,36 +18,66 @@ package com.theta360.pluginapplication.network;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import com.theta360.pluginapplication.model.ImageSize;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
- * HTTP connection to device
+ * HTTP connection to device<p>
+ * One instance can be shared by any number of threads. Each operation keeps its state (command
+ * IDs, listeners, list pages, download progress) in objects of its own, and the shared parts, the
+ * connection pool, the thumbnail cache and the status checks, are thread-safe, so concurrent
+ * captures, downloads, listings and deletions reuse the same connections and caches.
  */
 public class HttpConnector {
-    private final static long CHECK_STATUS_PERIOD_MS = 50;
-    private String mIpAddress = null;
+    private final static int DOWNLOAD_CHUNK_SIZE = 64 * 1024;
+    /** Size of the first range requested for metadata (Exif and XMP usually fit in it) */
+    private final static int METADATA_RANGE_SIZE = 32 * 1024;
+    /** Bytes needed for the marker and length of the segment that follows */
+    private final static int SEGMENT_HEADER_SIZE = 4;
+    private final static String CAPTURE_MODE_IMAGE = "image";
+    /** Options changed by shooting and deletion */
+    private final static String[] STORAGE_OPTION_NAMES = {"remainingPictures", "remainingSpace",
+            "totalSpace"};
+    private final static Map<String, String> JSON_HEADERS = new HashMap<>();
+    static {
+        JSON_HEADERS.put("Content-Type", "application/json;charset=utf-8");
+        JSON_HEADERS.put("Accept", "application/json");
+    }
 
-    private String mContinuationToken = null;
-    private String mFingerPrint = null;
-    private Timer mCheckStatusTimer = null;
-    private HttpEventListener mHttpEventListener = null;
-    private HttpDeleteFileListener mHttpDeleteFileListener = null;
+    private final String mIpAddress;
+    private final HttpConnectionPool mConnectionPool;
+    private volatile ThumbnailCache mThumbnailCache = null;
+    private final FileDownloader.SegmentTuner mSegmentTuner = new FileDownloader.SegmentTuner();
+    private final AtomicLong mEmbeddedThumbCount = new AtomicLong();
+    private final StatusPollScheduler mPollScheduler = StatusPollScheduler.getDefault();
+    private final CameraStateWatcher mStateWatcher = new CameraStateWatcher(this);
+    /** Capture mode known to be set on the device (null if unknown) */
+    private volatile String mCaptureMode = null;
+    /** Shooting size known to be set on the device (null if unknown) */
+    private volatile ImageSize mImageSize = null;
+    /** Device status last acquired, used to detect changes made outside this connector */
+    private volatile CameraState mObservedState = null;
+    private final AtomicLong mSkippedOptionsCount = new AtomicLong();
+    private final OptionsCache mOptionsCache = new OptionsCache(this, OptionsCache.DEFAULT_TTL_MS);
+    /** Device information, which does not change while connected */
+    private volatile DeviceInfo mDeviceInfo = null;
 
     /**
      * Constructor
@@ -55,93 +85,114 @@ public class HttpConnector {
      * @param cameraIpAddress IP address of connection destination
      */
     public HttpConnector(String cameraIpAddress) {
+        this(cameraIpAddress, new HttpConnectionPool());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cameraIpAddress IP address of connection destination
+     * @param connectionPool Keep-alive connection pool used for all requests
+     */
+    public HttpConnector(String cameraIpAddress, HttpConnectionPool connectionPool) {
         mIpAddress = cameraIpAddress;
+        mConnectionPool = connectionPool;
     }
 
     /**
-     * Acquire storage information of device
+     * Acquire connection pool used by this connector
      *
-     * @return Storage information
+     * @return Connection pool
      */
-    public StorageInfo getStorageInfo() {
+    public HttpConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
 
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/execute");
-        JSONObject input = new JSONObject();
-        String responseData;
-        StorageInfo storageInfo = new StorageInfo();
-        InputStream is = null;
+    /**
+     * Acquire watcher of device status shared by all users of this connector
+     *
+     * @return Watcher
+     */
+    public CameraStateWatcher getStateWatcher() {
+        return mStateWatcher;
+    }
 
-        try {
-            // send HTTP POST
-            input.put("name", "camera.getOptions");
-            JSONObject parameters = new JSONObject();
-            JSONArray optionNames = new JSONArray();
-            optionNames.put("remainingPictures");
-            optionNames.put("remainingSpace");
-            optionNames.put("totalSpace");
-            parameters.put("optionNames", optionNames);
-            input.put("parameters", parameters);
+    /**
+     * Acquire cache of camera.getOptions results used by this connector
+     *
+     * @return Options cache
+     */
+    public OptionsCache getOptionsCache() {
+        return mOptionsCache;
+    }
+
+    /**
+     * Set cache used by {@link HttpConnector#getThumb(String)}
+     *
+     * @param thumbnailCache Thumbnail cache (null if thumbnails are not cached)
+     */
+    public void setThumbnailCache(ThumbnailCache thumbnailCache) {
+        mThumbnailCache = thumbnailCache;
+    }
 
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
+    /**
+     * Acquire cache used by {@link HttpConnector#getThumb(String)}
+     *
+     * @return Thumbnail cache (null if thumbnails are not cached)
+     */
+    public ThumbnailCache getThumbnailCache() {
+        return mThumbnailCache;
+    }
 
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
+    /**
+     * Acquire storage information of device<p>
+     * Values acquired within {@link OptionsCache#DEFAULT_TTL_MS} are reused unless the device
+     * status changed.
+     *
+     * @return Storage information
+     */
+    public StorageInfo getStorageInfo() {
+        StorageInfo storageInfo = new StorageInfo();
 
-            // parse JSON data
-            JSONObject output = new JSONObject(responseData);
-            String status = output.getString("state");
+        try {
+            JSONObject options = mOptionsCache.get(STORAGE_OPTION_NAMES);
 
-            if (status.equals("done")) {
-                JSONObject results = output.getJSONObject("results");
-                JSONObject options = results.getJSONObject("options");
-                int remainingPictures = options.getInt("remainingPictures");
-                storageInfo.setFreeSpaceInImages(remainingPictures);
+            int remainingPictures = options.getInt("remainingPictures");
+            storageInfo.setFreeSpaceInImages(remainingPictures);
 
-                long remainingSpace = options.getLong("remainingSpace");
-                storageInfo.setFreeSpaceInBytes(remainingSpace);
+            long remainingSpace = options.getLong("remainingSpace");
+            storageInfo.setFreeSpaceInBytes(remainingSpace);
 
-                long totalSpace = options.getLong("totalSpace");
-                storageInfo.setMaxCapacity(totalSpace);
-            }
+            long totalSpace = options.getLong("totalSpace");
+            storageInfo.setMaxCapacity(totalSpace);
         } catch (IOException e) {
             e.printStackTrace();
         } catch (JSONException e) {
             e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
 
         return storageInfo;
     }
 
     /**
-     * Acquire device information
+     * Acquire device information<p>
+     * The information is requested only once per connector.
      *
      * @return Device information
      */
     public DeviceInfo getDeviceInfo() {
-        HttpURLConnection getConnection = createHttpConnection("GET", "/osc/info");
+        DeviceInfo cachedDeviceInfo = mDeviceInfo;
+        if (cachedDeviceInfo != null) {
+            return copyDeviceInfo(cachedDeviceInfo);
+        }
+
         String responseData;
         DeviceInfo deviceInfo = new DeviceInfo();
-        InputStream is = null;
 
         try {
             // send HTTP GET
             // this protocol has no input.
-            getConnection.connect();
-
-            is = getConnection.getInputStream();
-            responseData = InputStreamToString(is);
+            responseData = executeRequest("GET", "/osc/info", null);
 
             // parse JSON data
             JSONObject output = new JSONObject(responseData);
@@ -154,55 +205,69 @@ public class HttpConnector {
 
             String serialNumber = output.getString("serialNumber");
             deviceInfo.setSerialNumber(serialNumber);
+
+            mDeviceInfo = copyDeviceInfo(deviceInfo);
         } catch (IOException e) {
             e.printStackTrace();
         } catch (JSONException e) {
             e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
 
         return deviceInfo;
     }
 
+    private static DeviceInfo copyDeviceInfo(DeviceInfo deviceInfo) {
+        DeviceInfo copy = new DeviceInfo();
+        copy.setModel(deviceInfo.getModel());
+        copy.setDeviceVersion(deviceInfo.getDeviceVersion());
+        copy.setSerialNumber(deviceInfo.getSerialNumber());
+        return copy;
+    }
+
     /**
-     * Acquire list of media files on device
+     * Acquire list of all media files on device<p>
+     * All entries are held in memory. Use {@link HttpConnector#openList(int)} to walk a large
+     * number of files with bounded memory.
      *
      * @return Media file list
      */
     public ArrayList<ImageInfo> getList() {
         ArrayList<ImageInfo> imageInfos = new ArrayList<>();
 
-        for (int continuation = 0; continuation < 3; continuation++) {
-            ArrayList<ImageInfo> receivedImageInfo = getListInternal(10, imageInfos.size());
-            imageInfos.addAll(receivedImageInfo);
-            if (receivedImageInfo.size() < 10) {
-                break;
+        ImageInfoCursor cursor = openList(ImageInfoCursor.DEFAULT_PAGE_SIZE);
+        try {
+            while (cursor.hasNext()) {
+                imageInfos.add(cursor.next());
             }
+        } finally {
+            cursor.close();
         }
 
         return imageInfos;
     }
 
+    /**
+     * Open cursor that walks all media files on device<p>
+     * Files are requested page by page and the next page is prefetched while the current page is
+     * consumed. The cursor must be closed when it is no longer used.
+     *
+     * @param pageSize Number of files requested at once
+     * @return Cursor of media files
+     */
+    public ImageInfoCursor openList(int pageSize) {
+        return new ImageInfoCursor(this, pageSize);
+    }
+
     /**
      * Acquire media file list (limited number of items)
      *
      * @param maxReceiveEntry Maximum number of files that can be acquired at once
-     * @param startPosition Set the previously acquired token to continue. Set null if acquiring for
-     * the first time.
-     * @return List of specified number of media files
+     * @param startPosition Position of the first file to acquire (0 is the newest file)
+     * @return Page of media files (null is returned if acquisition fails)
      */
-    private ArrayList<ImageInfo> getListInternal(int maxReceiveEntry, int startPosition) {
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/execute");
+    ListPage getListInternal(int maxReceiveEntry, int startPosition) {
         JSONObject input = new JSONObject();
-        String responseData;
-        ArrayList<ImageInfo> imageInfos = new ArrayList<>();
+        ListPage page = new ListPage();
         InputStream is = null;
 
         try {
@@ -215,62 +280,39 @@ public class HttpConnector {
             parameters.put("startPosition", startPosition);
             input.put("parameters", parameters);
 
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
-
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
-
-            // parse JSON data
-            JSONObject output = new JSONObject(responseData);
-            String status = output.getString("state");
-
-            if (status.equals("done")) {
-                JSONObject results = output.getJSONObject("results");
-                JSONArray entries = results.getJSONArray("entries");
-                int entrySize = entries.length();
-                try {
-                    mContinuationToken = results.getString("continuationToken");
-                } catch (JSONException e) {
-                    mContinuationToken = null;
+            is = sendRequest("POST", createUrl("/osc/commands/execute"), JSON_HEADERS, input)
+                    .getInputStream();
+
+            // parse JSON data directly from the stream
+            JsonReader reader = new JsonReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String status = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("state")) {
+                    status = reader.nextString();
+                } else if (name.equals("results")) {
+                    readListResults(reader, page);
+                } else {
+                    reader.skipValue();
                 }
+            }
+            reader.endObject();
+            skipToEnd(is);
 
-                for (int index = 0; index < entrySize; index++) {
-                    JSONObject entry = entries.getJSONObject(index);
-                    ImageInfo imageInfo = new ImageInfo();
-
-                    String name = entry.getString("name");
-                    imageInfo.setFileName(name);
-
-                    String id = entry.getString("fileUrl");
-                    imageInfo.setFileId(id);
-
-                    long size = Long.parseLong(entry.getString("size"));
-                    imageInfo.setFileSize(size);
-
-                    int width = entry.getInt("width");
-                    imageInfo.setWidth(width);
-
-                    int height = entry.getInt("height");
-                    imageInfo.setHeight(height);
-
-                    try {
-                        entry.getInt("_recordTime");
-                        imageInfo.setFileFormat(ImageInfo.FILE_FORMAT_CODE_EXIF_MPEG);
-                    } catch (JSONException e) {
-                        imageInfo.setFileFormat(ImageInfo.FILE_FORMAT_CODE_EXIF_JPEG);
-                    }
-
-                    imageInfos.add(imageInfo);
-                }
+            if (status == null || !status.equals("done")) {
+                page = null;
             }
         } catch (IOException e) {
             e.printStackTrace();
+            page = null;
+        } catch (IllegalStateException | NumberFormatException e) {
+            // malformed response
+            e.printStackTrace();
+            page = null;
         } catch (JSONException e) {
             e.printStackTrace();
+            page = null;
         } finally {
             if (is != null) {
                 try {
@@ -281,33 +323,121 @@ public class HttpConnector {
             }
         }
 
-        return imageInfos;
+        return page;
+    }
+
+    /**
+     * Read "results" of camera.listFiles
+     *
+     * @param reader JSON reader positioned at the "results" value
+     * @param page Page to which the read media files are added
+     * @throws IOException IO error
+     */
+    private void readListResults(JsonReader reader, ListPage page) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("entries")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    page.mEntries.add(readImageInfo(reader));
+                }
+                reader.endArray();
+            } else if (name.equals("continuationToken") && reader.peek() == JsonToken.STRING) {
+                page.mContinuationToken = reader.nextString();
+            } else if (name.equals("totalEntries")) {
+                page.mTotalEntries = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
     }
 
     /**
-     * Acquire thumbnail image
+     * Read one entry of camera.listFiles
+     *
+     * @param reader JSON reader positioned at the entry
+     * @return Media file information
+     * @throws IOException IO error
+     */
+    private ImageInfo readImageInfo(JsonReader reader) throws IOException {
+        ImageInfo imageInfo = new ImageInfo();
+        imageInfo.setFileFormat(ImageInfo.FILE_FORMAT_CODE_EXIF_JPEG);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "name":
+                    imageInfo.setFileName(reader.nextString());
+                    break;
+                case "fileUrl":
+                    imageInfo.setFileId(reader.nextString());
+                    break;
+                case "size":
+                    // number or numeric string
+                    imageInfo.setFileSize(reader.nextLong());
+                    break;
+                case "width":
+                    imageInfo.setWidth(reader.nextInt());
+                    break;
+                case "height":
+                    imageInfo.setHeight(reader.nextInt());
+                    break;
+                case "dateTimeZone":
+                    imageInfo.setCaptureDate(reader.nextString());
+                    break;
+                case "_recordTime":
+                    // only videos have a recording time
+                    imageInfo.setFileFormat(ImageInfo.FILE_FORMAT_CODE_EXIF_MPEG);
+                    reader.skipValue();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        return imageInfo;
+    }
+
+    /**
+     * Acquire thumbnail image<p>
+     * If a thumbnail cache is set, cached thumbnails are returned without accessing the device.
      *
      * @param fileId File ID
      * @return Thumbnail (null is returned if acquisition fails)
      */
     public Bitmap getThumb(String fileId) {
-        HttpURLConnection postConnection = null;
-        try {
-            postConnection = (HttpURLConnection) new URL(fileId + "?type=thumb").openConnection();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        JSONObject input = new JSONObject();
+        ThumbnailCache thumbnailCache = mThumbnailCache;
         Bitmap thumbnail = null;
         InputStream is = null;
 
+        if (thumbnailCache != null) {
+            thumbnail = thumbnailCache.get(fileId);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+        // the file may be deleted while its thumbnail is being fetched
+        long generation = thumbnailCache != null ? thumbnailCache.getGeneration() : 0;
+
         try {
             // send HTTP GET
-            postConnection.connect();
+            is = sendRequest("GET", fileId + "?type=thumb", null, null).getInputStream();
 
-            is = postConnection.getInputStream();
-            BufferedInputStream bis = new BufferedInputStream(is);
-            thumbnail = BitmapFactory.decodeStream(bis);
+            // read to the end so that the connection can be reused
+            byte[] thumbData = InputStreamToByteArray(is, -1);
+            thumbnail = BitmapFactory.decodeByteArray(thumbData, 0, thumbData.length);
+            if (thumbnail != null && thumbnailCache != null) {
+                thumbnailCache.put(fileId, thumbData, thumbnail, generation);
+            }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -324,14 +454,22 @@ public class HttpConnector {
     }
 
     /**
-     * Take photo<p> After shooting, the status is checked for each {@link
-     * HttpConnector#CHECK_STATUS_PERIOD_MS} and the listener notifies you of the status.
+     * Take photo<p> After shooting, the status is checked by the shared {@link
+     * StatusPollScheduler} and the listener notifies you of the status. If the device rejects the
+     * shot while the capture mode was known to be set, the mode may have been switched on the
+     * device, so the mode is set again and the shot is retried once.
      *
      * @param listener Post-shooting event listener
      * @return Shooting request results
      */
     public ShootResult takePicture(HttpEventListener listener) {
+        return takePicture(listener, true);
+    }
+
+    private ShootResult takePicture(HttpEventListener listener, boolean retry) {
         ShootResult result = ShootResult.FAIL_DEVICE_BUSY;
+        boolean captureModeKnown = CAPTURE_MODE_IMAGE.equals(mCaptureMode);
+        boolean rejected = false;
 
         // set capture mode to image
         String errorMessage = setImageCaptureMode();
@@ -341,44 +479,36 @@ public class HttpConnector {
             return result;
         }
 
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/execute");
         JSONObject input = new JSONObject();
         String responseData;
-        mHttpEventListener = listener;
-        InputStream is = null;
 
         try {
             // send HTTP POST
             input.put("name", "camera.takePicture");
 
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
-
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
+            responseData = executeRequest("/osc/commands/execute", input);
 
             // parse JSON data
             JSONObject output = new JSONObject(responseData);
             String status = output.getString("state");
-            String commandId = output.getString("id");
 
             if (status.equals("inProgress")) {
-                mCheckStatusTimer = new Timer(true);
-                CapturedTimerTask capturedTimerTask = new CapturedTimerTask();
-                capturedTimerTask.setCommandId(commandId);
-                mCheckStatusTimer.scheduleAtFixedRate(capturedTimerTask, CHECK_STATUS_PERIOD_MS,
-                        CHECK_STATUS_PERIOD_MS);
+                String commandId = output.getString("id");
+                ImageSize imageSize = mImageSize;
+                mPollScheduler.schedule("camera.takePicture/"
+                                + (imageSize != null ? imageSize.name() : "unknown"),
+                        new CapturedPoll(commandId, listener));
                 result = ShootResult.SUCCESS;
             } else if (status.equals("done")) {
                 JSONObject results = output.getJSONObject("results");
                 String lastFileId = results.getString("fileUri");
 
-                mHttpEventListener.onObjectChanged(lastFileId);
-                mHttpEventListener.onCompleted();
+                invalidateStorageOptions();
+                listener.onObjectChanged(lastFileId);
+                listener.onCompleted();
                 result = ShootResult.SUCCESS;
+            } else if (status.equals("error")) {
+                rejected = true;
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -386,13 +516,12 @@ public class HttpConnector {
         } catch (JSONException e) {
             e.printStackTrace();
             result = ShootResult.FAIL_DEVICE_BUSY;
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        }
+        if (result != ShootResult.SUCCESS) {
+            // the options may have been changed outside this connector
+            invalidateOptions();
+            if (rejected && captureModeKnown && retry) {
+                return takePicture(listener, false);
             }
         }
 
@@ -404,26 +533,19 @@ public class HttpConnector {
      *
      * @param commandId Command ID for shooting still images
      * @return ID of saved file (null is returned if the file is not saved)
+     * @throws IOException The device reported that shooting failed
      */
-    private String checkCaptureStatus(String commandId) {
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/status");
+    private String checkCaptureStatus(String commandId) throws IOException {
         JSONObject input = new JSONObject();
         String responseData;
         String capturedFileId = null;
-        InputStream is = null;
+        String errorMessage = null;
 
         try {
             // send HTTP POST
             input.put("id", commandId);
 
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
-
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
+            responseData = executeRequest("/osc/commands/status", input);
 
             // parse JSON data
             JSONObject output = new JSONObject(responseData);
@@ -432,21 +554,20 @@ public class HttpConnector {
             if (status.equals("done")) {
                 JSONObject results = output.getJSONObject("results");
                 capturedFileId = results.getString("fileUrl");
+            } else if (status.equals("error")) {
+                JSONObject errors = output.optJSONObject("error");
+                errorMessage = errors != null ? errors.optString("message")
+                        : "camera.takePicture " + status;
             }
         } catch (IOException e) {
             e.printStackTrace();
         } catch (JSONException e) {
             e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
 
+        if (errorMessage != null) {
+            throw new IOException(errorMessage);
+        }
         return capturedFileId;
     }
 
@@ -454,41 +575,61 @@ public class HttpConnector {
      * Acquire raw data of specified image
      *
      * @param fileId File ID
-     * @param listener Listener for receiving received data count
+     * @param listener Listener for receiving received data count and metadata
      * @return Image data
      */
     public ImageData getImage(String fileId, HttpDownloadListener listener) {
-        HttpURLConnection postConnection = null;
-        try {
-            postConnection = (HttpURLConnection) new URL(fileId).openConnection();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
         ImageData imageData = new ImageData();
-        int totalSize = 0;
+        long totalSize = 0;
         InputStream is = null;
+        JpegMetadataParser parser = new JpegMetadataParser();
+        ImageMetadata metadata = new ImageMetadata();
+        metadata.setFileId(fileId);
+        parser.setMetadata(metadata);
 
         try {
             // send HTTP GET
-            postConnection.connect();
+            HttpConnectionPool.Response response = sendRequest("GET", fileId, null, null);
 
-            totalSize = postConnection.getContentLength();
+            totalSize = response.getContentLength();
             listener.onTotalSize(totalSize);
-            is = postConnection.getInputStream();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[2048];
-            int length;
-
-            while ((length = is.read(buffer)) >= 0) {
-                baos.write(buffer, 0, length);
-                listener.onDataReceived(length);
+            is = response.getInputStream();
+            byte[] rawData;
+
+            if (totalSize >= 0 && totalSize <= Integer.MAX_VALUE) {
+                // read directly into an array of the final size
+                rawData = new byte[(int) totalSize];
+                int offset = 0;
+                int length;
+                while (offset < rawData.length
+                        && (length = is.read(rawData, offset, Math.min(rawData.length - offset,
+                        DOWNLOAD_CHUNK_SIZE))) >= 0) {
+                    feedMetadata(parser, rawData, offset, length, listener);
+                    offset += length;
+                    listener.onDataReceived(length);
+                }
+                if (offset != rawData.length) {
+                    throw new IOException("Received " + offset + " of " + totalSize + " bytes");
+                }
+            } else {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[DOWNLOAD_CHUNK_SIZE];
+                int length;
+
+                while ((length = is.read(buffer)) >= 0) {
+                    feedMetadata(parser, buffer, 0, length, listener);
+                    baos.write(buffer, 0, length);
+                    listener.onDataReceived(length);
+                }
+                rawData = baos.toByteArray();
             }
-            byte[] rawData = baos.toByteArray();
             imageData.setRawData(rawData);
 
-            XMP xmp = new XMP(rawData);
-            imageData.setPitch(xmp.getPosePitchDegrees());
-            imageData.setRoll(xmp.getPoseRollDegrees());
+            if (!parser.isDone()) {
+                // no image data after the metadata
+                listener.onMetadataReceived(metadata);
+            }
+            imageData.setPose(metadata);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -504,6 +645,207 @@ public class HttpConnector {
         return imageData;
     }
 
+    /**
+     * Feed received data to metadata parser, and notify the metadata when parsing finishes
+     */
+    private void feedMetadata(JpegMetadataParser parser, byte[] data, int offset, int length,
+            HttpDownloadListener listener) {
+        if (!parser.isDone() && !parser.feed(data, offset, length)) {
+            listener.onMetadataReceived(parser.getMetadata());
+        }
+    }
+
+    /**
+     * Download specified image into a file<p>
+     * The image is not held in memory. {@link ImageData#getRawData()} of the result is null and
+     * {@link ImageData#getFile()} refers to the downloaded file. If the transfer breaks, it is
+     * resumed with Range requests, and a partial download left by an earlier call is continued.
+     *
+     * @param fileId File ID
+     * @param file Destination file
+     * @param listener Listener for receiving received data count and metadata
+     * @return Image data (null is returned if the download fails)
+     */
+    public ImageData getImage(String fileId, File file, HttpDownloadListener listener) {
+        try {
+            return new FileDownloader(this).download(fileId, file, listener);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Download specified image into a file with several concurrent Range requests<p>
+     * The number of requests is tuned from the throughput measured by earlier downloads.
+     *
+     * @param fileId File ID
+     * @param file Destination file
+     * @param listener Listener for receiving received data count (called from several threads,
+     * but never at the same time)
+     * @return Image data (null is returned if the download fails)
+     */
+    public ImageData getImageSegmented(String fileId, File file, HttpDownloadListener listener) {
+        return getImageSegmented(fileId, file, listener, mSegmentTuner.getSegmentCount());
+    }
+
+    /**
+     * Download specified image into a file with several concurrent Range requests
+     *
+     * @param fileId File ID
+     * @param file Destination file
+     * @param listener Listener for receiving received data count (called from several threads,
+     * but never at the same time)
+     * @param segmentCount Number of concurrent requests
+     * @return Image data (null is returned if the download fails)
+     */
+    public ImageData getImageSegmented(String fileId, File file, HttpDownloadListener listener,
+            int segmentCount) {
+        try {
+            return new FileDownloader(this).downloadSegmented(fileId, file, listener,
+                    segmentCount);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Acquire metadata of specified image without downloading the image<p>
+     * Only the beginning of the file is requested with Range requests. Segments that are not
+     * needed are skipped, and the range is extended only when the Exif or XMP segment does not
+     * fit in the data received so far. The thumbnail embedded in Exif is returned as well, so a
+     * separate thumbnail request is not needed.
+     *
+     * @param fileId File ID
+     * @return Metadata (null is returned if the file cannot be read)
+     */
+    public ImageMetadata getMetadata(String fileId) {
+        ImageMetadata metadata = new ImageMetadata();
+        metadata.setFileId(fileId);
+        JpegMetadataParser parser = new JpegMetadataParser();
+        parser.setMetadata(metadata);
+        byte[] buffer = new byte[DOWNLOAD_CHUNK_SIZE];
+        long offset = 0;
+
+        try {
+            while (!parser.isDone()) {
+                int rangeSize = Math.max(METADATA_RANGE_SIZE,
+                        parser.getSegmentRemainingSize() + SEGMENT_HEADER_SIZE);
+                HashMap<String, String> headers = new HashMap<>();
+                headers.put("Range", "bytes=" + offset + "-" + (offset + rangeSize - 1));
+                HttpConnectionPool.Response response = sendRequest("GET", fileId, headers, null);
+                InputStream is = response.getInputStream();
+                long received = 0;
+                try {
+                    int responseCode = response.getResponseCode();
+                    if (responseCode == 416) {
+                        // the file ended inside a segment
+                        break;
+                    } else if (responseCode == 206) {
+                        if (FileDownloader.parseContentRangeStart(
+                                response.getHeader("Content-Range")) != offset) {
+                            throw new IOException("Range not satisfied for " + fileId);
+                        }
+                    } else if (responseCode == 200) {
+                        // Range is not supported, read the whole file until parsing finishes.
+                        // The data before the offset has already been fed to the parser.
+                        skipFully(is, offset);
+                        int length;
+                        while (!parser.isDone() && (length = is.read(buffer)) >= 0) {
+                            parser.feed(buffer, 0, length);
+                        }
+                        break;
+                    } else {
+                        throw new IOException("HTTP " + responseCode + " for " + fileId);
+                    }
+
+                    int length;
+                    while ((length = is.read(buffer)) >= 0) {
+                        // read to the end so that the connection can be reused
+                        parser.feed(buffer, 0, length);
+                        received += length;
+                    }
+                } finally {
+                    is.close();
+                }
+                if (received < rangeSize) {
+                    // end of file
+                    break;
+                }
+
+                offset += received;
+                int skippableSize = parser.getSkippableSize();
+                parser.skip(skippableSize);
+                offset += skippableSize;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (metadata.getThumbnail() != null) {
+            mEmbeddedThumbCount.incrementAndGet();
+        }
+
+        return metadata;
+    }
+
+    /**
+     * Check whether a file is still stored on device<p>
+     * Only the first byte is requested.
+     *
+     * @param fileId File ID
+     * @return true:File exists, false:File does not exist (null is returned if the check fails)
+     */
+    Boolean fileExists(String fileId) {
+        HashMap<String, String> headers = new HashMap<>();
+        headers.put("Range", "bytes=0-0");
+
+        try {
+            HttpConnectionPool.Response response = sendRequest("GET", fileId, headers, null);
+            InputStream is = response.getInputStream();
+            try {
+                int responseCode = response.getResponseCode();
+                if (responseCode == 404 || responseCode == 410) {
+                    skipToEnd(is);
+                    return false;
+                } else if (responseCode == 206) {
+                    skipToEnd(is);
+                    return true;
+                } else if (responseCode == 200) {
+                    // Range is not supported, the connection is closed instead of reading the file
+                    return true;
+                }
+                return null;
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Acquire number of thumbnails received together with metadata<p>
+     * Each of them is a thumbnail request to the device that is saved when it is used instead of
+     * {@link HttpConnector#getThumb(String)}.
+     *
+     * @return Number of saved requests
+     */
+    public long getSavedThumbRequestCount() {
+        return mEmbeddedThumbCount.get();
+    }
+
+    /**
+     * Acquire tuner of the number of segments used by segmented downloads
+     *
+     * @return Segment tuner
+     */
+    FileDownloader.SegmentTuner getSegmentTuner() {
+        return mSegmentTuner;
+    }
+
     /**
      * Acquire live view stream
      *
@@ -514,46 +856,31 @@ public class HttpConnector {
         // set capture mode to image
         setImageCaptureMode();
 
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/execute");
         JSONObject input = new JSONObject();
         InputStream is = null;
 
         try {
             // send HTTP POST
             input.put("name", "camera.getLivePreview");
-            JSONObject parameters = new JSONObject();
-
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
 
-            is = postConnection.getInputStream();
-        } catch (IOException e) {
-            e.printStackTrace();
-            String errorMessage = null;
-            InputStream es = postConnection.getErrorStream();
-            try {
-                if (es != null) {
-                    String errorData = InputStreamToString(es);
+            HttpConnectionPool.Response response = sendRequest("POST",
+                    createUrl("/osc/commands/execute"), JSON_HEADERS, input);
+            is = response.getInputStream();
+            if (response.getResponseCode() >= 400) {
+                String errorMessage = null;
+                try {
+                    String errorData = InputStreamToString(is);
                     JSONObject output = new JSONObject(errorData);
                     JSONObject errors = output.getJSONObject("error");
                     errorMessage = errors.getString("message");
+                } catch (JSONException e1) {
+                    e1.printStackTrace();
                 }
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            } catch (JSONException e1) {
-                e1.printStackTrace();
-            } finally {
-                if (es != null) {
-                    try {
-                        es.close();
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                    }
-                }
+                invalidateOptions();
+                throw new IOException("getLivePreview failed: " + errorMessage);
             }
+        } catch (IOException e) {
+            e.printStackTrace();
             throw e;
         } catch (JSONException e) {
             e.printStackTrace();
@@ -590,11 +917,8 @@ public class HttpConnector {
             return;
         }
 
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/execute");
         JSONObject input = new JSONObject();
         String responseData;
-        mHttpDeleteFileListener = listener;
-        InputStream is = null;
 
         try {
             // send HTTP POST
@@ -610,14 +934,8 @@ public class HttpConnector {
 
             input.put("parameters", parameters);
 
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
-
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
+            responseData = executeRequest("/osc/commands/execute", input);
+            invalidateStorageOptions();
 
             // parse JSON data
             JSONObject output = new JSONObject(responseData);
@@ -625,73 +943,62 @@ public class HttpConnector {
 
 
             if (status.equals("inProgress")) {
-                getState();
-                mCheckStatusTimer = new Timer(true);
-                DeletedTimerTask deletedTimerTask = new DeletedTimerTask(deletedFileIds);
-                mCheckStatusTimer.scheduleAtFixedRate(deletedTimerTask, CHECK_STATUS_PERIOD_MS,
-                        CHECK_STATUS_PERIOD_MS);
+                mStateWatcher.watchDeletion(deletedFileIds, listener);
             } else if (status.equals("done")) {
-                mHttpDeleteFileListener.onObjectChanged(deletedFileIds);
-                mHttpDeleteFileListener.onCompleted();
-                mFingerPrint = null;
+                removeThumbnails(deletedFileIds);
+                listener.onObjectChanged(deletedFileIds);
+                listener.onCompleted();
+                mStateWatcher.notifyFilesDeleted(deletedFileIds);
+            } else if (status.equals("error")) {
+                JSONObject errors = output.getJSONObject("error");
+                listener.onError(errors.getString("message"));
             }
         } catch (IOException e) {
             e.printStackTrace();
+            listener.onError(e.toString());
         } catch (JSONException e) {
             e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            listener.onError(e.toString());
+        }
+    }
+
+    /**
+     * Remove thumbnails of deleted files from the cache
+     *
+     * @param deletedFileIds File ID's of files whose deletion is confirmed
+     */
+    void removeThumbnails(ArrayList<String> deletedFileIds) {
+        ThumbnailCache thumbnailCache = mThumbnailCache;
+        if (thumbnailCache != null) {
+            for (String fileId : deletedFileIds) {
+                thumbnailCache.remove(fileId);
             }
         }
     }
 
     /**
-     * Acquire currently set shooting size
+     * Acquire currently set shooting size<p>
+     * The size last acquired or set is returned without accessing the device until the options
+     * cache is invalidated.
      *
      * @return Shooting size (null is returned if acquisition fails)
      */
     public ImageSize getImageSize() {
+        ImageSize cachedImageSize = mImageSize;
+        if (cachedImageSize != null) {
+            mSkippedOptionsCount.incrementAndGet();
+            return cachedImageSize;
+        }
 
         // set capture mode to image
         setImageCaptureMode();
 
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/execute");
-        JSONObject input = new JSONObject();
-        String responseData;
         ImageSize imageSize = null;
-        InputStream is = null;
 
         try {
-            // send HTTP POST
-            input.put("name", "camera.getOptions");
-            JSONObject parameters = new JSONObject();
-            JSONArray optionNames = new JSONArray();
-            optionNames.put("fileFormat");
-            parameters.put("optionNames", optionNames);
-            input.put("parameters", parameters);
-
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
-
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
-
-            // parse JSON data
-            JSONObject output = new JSONObject(responseData);
-            String status = output.getString("state");
-
-            if (status.equals("done")) {
-                JSONObject results = output.getJSONObject("results");
-                JSONObject options = results.getJSONObject("options");
-                JSONObject fileFormat = options.getJSONObject("fileFormat");
+            JSONObject options = mOptionsCache.get("fileFormat");
+            JSONObject fileFormat = options.optJSONObject("fileFormat");
+            if (fileFormat != null) {
                 int width = fileFormat.getInt("width");
 
                 switch(width) {
@@ -712,30 +1019,32 @@ public class HttpConnector {
                         imageSize = ImageSize.IMAGE_SIZE_11008x5504;
                         break;
                 }
+                mImageSize = imageSize;
             }
         } catch (IOException e) {
             e.printStackTrace();
         } catch (JSONException e) {
             e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
 
         return imageSize;
     }
 
     /**
-     * Specify shooting size
+     * Specify shooting size<p>
+     * Nothing is sent if the size is known to be set already.
      *
-     * @param imageSize Shooting size
+     * @param imageSize Shooting size (must not be null)
      */
     public void setImageSize(ImageSize imageSize) {
+        if (imageSize == null) {
+            throw new IllegalArgumentException("imageSize must not be null");
+        }
+        if (imageSize == mImageSize) {
+            mSkippedOptionsCount.incrementAndGet();
+            return;
+        }
+
         int width;
         int height;
         switch (imageSize) {
@@ -765,10 +1074,8 @@ public class HttpConnector {
         // set capture mode to image
         setImageCaptureMode();
 
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/execute");
         JSONObject input = new JSONObject();
         String responseData;
-        InputStream is = null;
 
         try {
             // send HTTP POST
@@ -783,60 +1090,116 @@ public class HttpConnector {
             parameters.put("options", options);
             input.put("parameters", parameters);
 
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
+            responseData = executeRequest("/osc/commands/execute", input);
 
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
+            // parse JSON data
+            JSONObject output = new JSONObject(responseData);
+            if (output.getString("state").equals("done")) {
+                mOptionsCache.invalidate("fileFormat");
+                mImageSize = imageSize;
+            } else {
+                invalidateOptions();
+            }
         } catch (IOException e) {
             e.printStackTrace();
+            invalidateOptions();
         } catch (JSONException e) {
             e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            invalidateOptions();
         }
     }
 
     /**
-     * Set still image as shooting mode
+     * Forget the capture mode and the shooting size known to be set, and the cached option
+     * values<p>
+     * Called automatically when a command fails or when the device status changes without a file
+     * being added or deleted. Call this when the options may have been changed in another way.
+     */
+    public void invalidateOptions() {
+        mCaptureMode = null;
+        mImageSize = null;
+        mOptionsCache.invalidate();
+    }
+
+    private void invalidateStorageOptions() {
+        for (String optionName : STORAGE_OPTION_NAMES) {
+            mOptionsCache.invalidate(optionName);
+        }
+    }
+
+    /**
+     * Acquire option values from device (use {@link OptionsCache#get(String...)} instead)
+     *
+     * @param optionNames Option names
+     * @return Option values keyed by option name
+     * @throws IOException IO error or error response
+     * @throws JSONException JSON error
+     */
+    JSONObject requestOptions(Collection<String> optionNames) throws IOException, JSONException {
+        JSONObject input = new JSONObject();
+
+        // send HTTP POST
+        input.put("name", "camera.getOptions");
+        JSONObject parameters = new JSONObject();
+        JSONArray optionNameArray = new JSONArray();
+        for (String optionName : optionNames) {
+            optionNameArray.put(optionName);
+        }
+        parameters.put("optionNames", optionNameArray);
+        input.put("parameters", parameters);
+
+        String responseData = executeRequest("/osc/commands/execute", input);
+
+        // parse JSON data (error responses also carry the error message in the body)
+        JSONObject output = new JSONObject(responseData);
+        String status = output.getString("state");
+
+        if (!status.equals("done")) {
+            JSONObject errors = output.optJSONObject("error");
+            throw new IOException(errors != null ? errors.optString("message")
+                    : "camera.getOptions " + status);
+        }
+        JSONObject results = output.getJSONObject("results");
+        return results.getJSONObject("options");
+    }
+
+    /**
+     * Acquire number of option requests skipped because the options were known
+     *
+     * @return Number of requests
+     */
+    public long getSkippedOptionsRequestCount() {
+        return mSkippedOptionsCount.get();
+    }
+
+    /**
+     * Set still image as shooting mode<p>
+     * Nothing is sent if the mode is known to be set already.
      *
      * @return Error message (null is returned if successful)
      */
     private String setImageCaptureMode() {
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/commands/execute");
+        if (CAPTURE_MODE_IMAGE.equals(mCaptureMode)) {
+            mSkippedOptionsCount.incrementAndGet();
+            return null;
+        }
+
         JSONObject input = new JSONObject();
         String responseData;
         String errorMessage = null;
-        InputStream is = null;
 
         try {
             // send HTTP POST
             input.put("name", "camera.setOptions");
             JSONObject parameters = new JSONObject();
             JSONObject options = new JSONObject();
-            options.put("captureMode", "image");
+            options.put("captureMode", CAPTURE_MODE_IMAGE);
             parameters.put("options", options);
             input.put("parameters", parameters);
 
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
-
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
+            responseData = executeRequest("/osc/commands/execute", input);
 
-            // parse JSON data
+            // parse JSON data (error responses also carry the error message in the body)
             JSONObject output = new JSONObject(responseData);
             String status = output.getString("state");
 
@@ -847,135 +1210,100 @@ public class HttpConnector {
         } catch (IOException e) {
             e.printStackTrace();
             errorMessage = e.toString();
-            InputStream es = postConnection.getErrorStream();
-            try {
-                if (es != null) {
-                    String errorData = InputStreamToString(es);
-                    JSONObject output = new JSONObject(errorData);
-                    JSONObject errors = output.getJSONObject("error");
-                    errorMessage = errors.getString("message");
-                }
-            } catch (IOException e1) {
-                e1.printStackTrace();
-            } catch (JSONException e1) {
-                e1.printStackTrace();
-            } finally {
-                if (es != null) {
-                    try {
-                        es.close();
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                    }
-                }
-            }
         } catch (JSONException e) {
             e.printStackTrace();
             errorMessage = e.toString();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
 
+        if (errorMessage == null) {
+            // the shooting size options depend on the capture mode
+            mOptionsCache.invalidate("fileFormat");
+            mCaptureMode = CAPTURE_MODE_IMAGE;
+        } else {
+            invalidateOptions();
+        }
         return errorMessage;
     }
 
     /**
-     * Acquire device status
+     * Acquire device status with its fingerprint
      *
-     * @return Last saved file
+     * @return Device status (null is returned if acquisition fails)
      */
-    private String getState() {
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/state");
+    public CameraState getCameraState() {
         String responseData;
-        String lastFile = "";
-        InputStream is = null;
+        CameraState cameraState = null;
 
         try {
             // send HTTP POST
-            postConnection.connect();
-
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
+            responseData = executeRequest("/osc/state", null);
 
             // parse JSON data
             JSONObject output = new JSONObject(responseData);
-            mFingerPrint = output.getString("fingerprint");
             JSONObject status = output.getJSONObject("state");
-            lastFile = status.getString("_latestFileUri");
+            cameraState = new CameraState();
+            cameraState.setFingerprint(output.getString("fingerprint"));
+            cameraState.setLatestFileUri(status.optString("_latestFileUri", ""));
+            cameraState.setStorageUri(status.optString("storageUri", ""));
+            observeState(cameraState);
         } catch (IOException e) {
             e.printStackTrace();
         } catch (JSONException e) {
             e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            cameraState = null;
         }
 
-        return lastFile;
+        return cameraState;
     }
 
     /**
-     * Check for updates to device status
+     * Discard cached option values if the device status changed, and forget the options known to
+     * be set if it changed without a file being added or deleted (for example the mode was
+     * switched on the device)
      *
-     * @return true:Update available, false:No update available
+     * @param cameraState Device status just acquired
      */
-    private boolean isUpdate() {
-        boolean update = false;
-        InputStream is = null;
-
-        if (mFingerPrint == null) {
-            return update;
+    private void observeState(CameraState cameraState) {
+        CameraState previousState = mObservedState;
+        mObservedState = cameraState;
+        if (previousState == null
+                || previousState.getFingerprint().equals(cameraState.getFingerprint())) {
+            return;
+        }
+        if (previousState.getLatestFileUri().equals(cameraState.getLatestFileUri())) {
+            invalidateOptions();
+        } else {
+            mOptionsCache.invalidate();
         }
+    }
 
-        HttpURLConnection postConnection = createHttpConnection("POST", "/osc/checkForUpdates");
+    /**
+     * Check for updates to device status
+     *
+     * @param fingerprint State fingerprint last acquired
+     * @return Current state fingerprint (null is returned if the check fails)
+     */
+    String checkForUpdates(String fingerprint) {
         JSONObject input = new JSONObject();
-        String responseData = null;
+        String responseData;
+        String currentFingerprint = null;
 
         try {
             // send HTTP POST
-            input.put("stateFingerprint", mFingerPrint);
-
-            OutputStream os = postConnection.getOutputStream();
-            os.write(input.toString().getBytes());
-            postConnection.connect();
-            os.flush();
-            os.close();
+            input.put("stateFingerprint", fingerprint);
 
-            is = postConnection.getInputStream();
-            responseData = InputStreamToString(is);
+            responseData = executeRequest("/osc/checkForUpdates", input);
 
             // parse JSON data
             JSONObject output = new JSONObject(responseData);
-            String currentFingerPrint = output.getString("stateFingerprint");
-            if (!currentFingerPrint.equals(mFingerPrint)) {
-                mFingerPrint = currentFingerPrint;
-                update = true;
-            }
+            currentFingerprint = output.getString("stateFingerprint");
         } catch (IOException e) {
             e.printStackTrace();
         } catch (JSONException e) {
             e.printStackTrace();
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
         }
 
-        return update;
+        return currentFingerprint;
     }
 
     /**
@@ -994,33 +1322,52 @@ public class HttpConnector {
     }
 
     /**
-     * Generate HTTP connection
+     * Send HTTP POST to device and acquire response
+     *
+     * @param path Path
+     * @param input JSON data to send (null if there is no input)
+     * @return Response data
+     * @throws IOException IO error
+     */
+    private String executeRequest(String path, JSONObject input) throws IOException {
+        return executeRequest("POST", path, input);
+    }
+
+    /**
+     * Send HTTP request to device and acquire response<p>
+     * Error responses are returned as they are, because the device sends the error details as
+     * JSON in the response body.
      *
      * @param method Method
      * @param path Path
-     * @return HTTP Connection instance
+     * @param input JSON data to send (null if there is no input)
+     * @return Response data
+     * @throws IOException IO error
      */
-    private HttpURLConnection createHttpConnection(String method, String path) {
-        HttpURLConnection connection = null;
-        try {
-            URL url = new URL(createUrl(path));
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestProperty("Content-Type", "application/json;charset=utf-8");
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setDoInput(true);
-
-            if (method.equals("POST")) {
-                connection.setRequestMethod(method);
-                connection.setDoOutput(true);
-            }
+    private String executeRequest(String method, String path, JSONObject input)
+            throws IOException {
+        HttpConnectionPool.Response response = sendRequest(method, createUrl(path), JSON_HEADERS,
+                input);
+        return InputStreamToString(response.getInputStream());
+    }
 
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Send HTTP request through the connection pool
+     *
+     * @param method Method
+     * @param url URL
+     * @param headers Request headers (null if there are none)
+     * @param input JSON data to send (null if there is no input)
+     * @return Response (the connection returns to the pool when its stream is read and closed)
+     * @throws IOException IO error
+     */
+    HttpConnectionPool.Response sendRequest(String method, String url,
+            Map<String, String> headers, JSONObject input) throws IOException {
+        byte[] body = null;
+        if (input != null) {
+            body = input.toString().getBytes(StandardCharsets.UTF_8);
         }
-
-        return connection;
+        return mConnectionPool.execute(method, new URL(url), headers, body);
     }
 
     /**
@@ -1041,54 +1388,114 @@ public class HttpConnector {
         return sb.toString();
     }
 
+    /**
+     * Discard the rest of input stream so that the connection can be reused
+     *
+     * @param is InputStream
+     * @throws IOException IO error
+     */
+    private void skipToEnd(InputStream is) throws IOException {
+        byte[] buffer = new byte[256];
+        while (is.read(buffer) >= 0) {
+            // discard
+        }
+    }
+
+    /**
+     * Discard the beginning of input stream
+     *
+     * @param is InputStream
+     * @param size Number of bytes to discard
+     * @throws IOException IO error or end of stream
+     */
+    private void skipFully(InputStream is, long size) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (size > 0) {
+            int length = is.read(buffer, 0, (int) Math.min(buffer.length, size));
+            if (length < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            size -= length;
+        }
+    }
+
+    /**
+     * Read input stream to the end
+     *
+     * @param is InputStream
+     * @param expectedSize Expected number of bytes ("-1" if unknown)
+     * @return Data
+     * @throws IOException IO error
+     */
+    private byte[] InputStreamToByteArray(InputStream is, long expectedSize) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(
+                expectedSize > 0 ? (int) expectedSize : 8192);
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = is.read(buffer)) >= 0) {
+            baos.write(buffer, 0, length);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * One page of camera.listFiles results
+     */
+    static class ListPage {
+        final ArrayList<ImageInfo> mEntries = new ArrayList<>();
+        int mTotalEntries = -1;
+        String mContinuationToken = null;
+    }
+
     public enum ShootResult {
         SUCCESS, FAIL_CAMERA_DISCONNECTED, FAIL_STORE_FULL, FAIL_DEVICE_BUSY
     }
 
-    private class CapturedTimerTask extends TimerTask {
-        private String mCommandId;
+    /**
+     * Status check class for still image shooting
+     */
+    private class CapturedPoll implements StatusPollScheduler.Poll {
+        private final String mCommandId;
+        private final HttpEventListener mListener;
+        private String mCapturedFileId = null;
 
-        public void setCommandId(String commandId) {
+        private CapturedPoll(String commandId, HttpEventListener listener) {
             mCommandId = commandId;
+            mListener = listener;
         }
 
         @Override
-        public void run() {
-            String capturedFileId = checkCaptureStatus(mCommandId);
-
-            if (capturedFileId != null) {
-                mHttpEventListener.onCheckStatus(true);
-                mCheckStatusTimer.cancel();
-                mHttpEventListener.onObjectChanged(capturedFileId);
-                mHttpEventListener.onCompleted();
-            } else {
-                mHttpEventListener.onCheckStatus(false);
+        public boolean poll() throws IOException {
+            mCapturedFileId = checkCaptureStatus(mCommandId);
+            if (mCapturedFileId != null) {
+                invalidateStorageOptions();
+                return true;
             }
+            return false;
         }
-    }
 
-    /**
-     * Status check class for file deletion
-     */
-    private class DeletedTimerTask extends TimerTask {
-        private final ArrayList<String> deleteFileIds;
-
-		private DeletedTimerTask(ArrayList<String> deleteFileIds) {
-			this.deleteFileIds = deleteFileIds;
-		}
-
-
-		@Override
-        public void run() {
-            boolean update = isUpdate();
-            mHttpDeleteFileListener.onCheckStatus(update);
-            if (update) {
-                mCheckStatusTimer.cancel();
-                getState();
-                mHttpDeleteFileListener.onObjectChanged(deleteFileIds);
-                mHttpDeleteFileListener.onCompleted();
-                mFingerPrint = null;
-            }
+        @Override
+        public void onCompleted() {
+            mListener.onCheckStatus(true);
+            mListener.onObjectChanged(mCapturedFileId);
+            mListener.onCompleted();
+        }
+
+        @Override
+        public void onInProgress() {
+            mListener.onCheckStatus(false);
+        }
+
+        @Override
+        public void onTimeout() {
+            mListener.onError("Shooting status check timed out");
+        }
+
+        @Override
+        public void onError(String errorMessage) {
+            // the options may have been changed outside this connector
+            invalidateOptions();
+            mListener.onError(errorMessage);
         }
     }
 }
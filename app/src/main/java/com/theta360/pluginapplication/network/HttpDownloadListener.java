@@ -28,4 +28,9 @@ public interface HttpDownloadListener {
      * Received byte count
      */
     void onDataReceived(int size);
+    /**
+     * Metadata at the beginning of the image, notified while the rest is still being received
+     */
+    default void onMetadataReceived(ImageMetadata metadata) {
+    }
 }
@@ -16,11 +16,14 @@
 
 package com.theta360.pluginapplication.network;
 
+import java.io.File;
+
 /**
  * Image data class
  */
 public class ImageData {
     private byte[] mRawData;
+    private File mFile;
     private Double pitch = 0.0d;
     private Double roll = 0.0d;
     private Double yaw = 0.0d;
@@ -41,6 +44,22 @@ public class ImageData {
         mRawData = rawData;
     }
 
+    /**
+     * Acquire file that holds the image
+     * @return File of image (null if the image is held as raw data)
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Set file that holds the image
+     * @param file File of image
+     */
+    public void setFile(File file) {
+        mFile = file;
+    }
+
     /**
      * Acquire pitch angle
      * @return Pitch angle
@@ -88,4 +107,18 @@ public class ImageData {
     public void setYaw(Double yaw) {
         this.yaw = yaw;
     }
+
+    /**
+     * Set pitch and roll angles found in metadata<p>
+     * Angles missing from the metadata keep their defaults (0.0).
+     * @param metadata Metadata of image
+     */
+    void setPose(ImageMetadata metadata) {
+        if (metadata.getPitch() != null) {
+            pitch = metadata.getPitch();
+        }
+        if (metadata.getRoll() != null) {
+            roll = metadata.getRoll();
+        }
+    }
 }
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Cursor that walks all media files on device<p>
+ * At most two pages (the page being consumed and the prefetched next page) are held in memory.
+ * Files are listed from the newest, so files shot while walking shift the positions and may
+ * cause an entry to be returned twice.
+ */
+public class ImageInfoCursor implements Iterator<ImageInfo>, Closeable {
+    public final static int DEFAULT_PAGE_SIZE = 100;
+
+    private final HttpConnector mConnector;
+    private final int mPageSize;
+    private final ExecutorService mExecutor;
+
+    private Iterator<ImageInfo> mCurrentPage = null;
+    private Future<HttpConnector.ListPage> mNextPage = null;
+    private int mNextPosition = 0;
+    private int mTotalEntries = -1;
+    private boolean mFailed = false;
+    private boolean mClosed = false;
+
+    /**
+     * Constructor
+     *
+     * @param connector Connector used to request pages
+     * @param pageSize Number of files requested at once
+     */
+    ImageInfoCursor(HttpConnector connector, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        mConnector = connector;
+        mPageSize = pageSize;
+        mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ImageInfoCursor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        requestNextPage();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (mCurrentPage == null || !mCurrentPage.hasNext()) {
+            if (mNextPage == null) {
+                return false;
+            }
+
+            HttpConnector.ListPage page = waitNextPage();
+            if (page == null) {
+                mFailed = true;
+                close();
+                return false;
+            }
+            if (page.mTotalEntries >= 0) {
+                mTotalEntries = page.mTotalEntries;
+            }
+            mNextPosition += page.mEntries.size();
+
+            boolean lastPage = page.mEntries.size() < mPageSize
+                    || (mTotalEntries >= 0 && mNextPosition >= mTotalEntries);
+            if (lastPage) {
+                mExecutor.shutdown();
+            } else {
+                // prefetch while the caller consumes this page
+                requestNextPage();
+            }
+            mCurrentPage = page.mEntries.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public ImageInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mCurrentPage.next();
+    }
+
+    /**
+     * Acquire total number of files on device reported by the last page
+     *
+     * @return Total number of files ("-1" is returned if no page has been received yet)
+     */
+    public int getTotalEntries() {
+        return mTotalEntries;
+    }
+
+    /**
+     * Check whether listing stopped because a page could not be acquired
+     *
+     * @return true:Failed, false:Not failed
+     */
+    public boolean isFailed() {
+        return mFailed;
+    }
+
+    /**
+     * Stop prefetching and release the cursor
+     */
+    @Override
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mNextPage != null) {
+            mNextPage.cancel(true);
+            mNextPage = null;
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void requestNextPage() {
+        final int startPosition = mNextPosition;
+        mNextPage = mExecutor.submit(() -> mConnector.getListInternal(mPageSize, startPosition));
+    }
+
+    private HttpConnector.ListPage waitNextPage() {
+        Future<HttpConnector.ListPage> nextPage = mNextPage;
+        mNextPage = null;
+        try {
+            return nextPage.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+/**
+ * Image metadata class<p>
+ * Holds pose and shooting information read from the beginning of an image, without the image
+ * data itself.
+ */
+public class ImageMetadata {
+    private String mFileId;
+    private Double mPitch;
+    private Double mRoll;
+    private Double mHeading;
+    private String mMake;
+    private String mModel;
+    private String mDateTimeOriginal;
+    private Double mExposureTime;
+    private Double mFNumber;
+    private Integer mIsoSpeed;
+    private int mWidth;
+    private int mHeight;
+    private byte[] mThumbnail;
+    private long mThumbnailOffset = -1;
+
+    /**
+     * Acquire file ID
+     * @return File ID
+     */
+    public String getFileId() {
+        return mFileId;
+    }
+
+    /**
+     * Set file ID
+     * @param fileId File ID
+     */
+    public void setFileId(String fileId) {
+        mFileId = fileId;
+    }
+
+    /**
+     * Acquire pitch angle
+     * @return Pitch angle set for XMP (null if not set)
+     */
+    public Double getPitch() {
+        return mPitch;
+    }
+
+    /**
+     * Set pitch angle
+     * @param pitch Pitch angle
+     */
+    public void setPitch(Double pitch) {
+        mPitch = pitch;
+    }
+
+    /**
+     * Acquire roll angle
+     * @return Roll angle set for XMP (null if not set)
+     */
+    public Double getRoll() {
+        return mRoll;
+    }
+
+    /**
+     * Set roll angle
+     * @param roll Roll angle
+     */
+    public void setRoll(Double roll) {
+        mRoll = roll;
+    }
+
+    /**
+     * Acquire heading angle
+     * @return Heading angle set for XMP (null if not set)
+     */
+    public Double getHeading() {
+        return mHeading;
+    }
+
+    /**
+     * Set heading angle
+     * @param heading Heading angle
+     */
+    public void setHeading(Double heading) {
+        mHeading = heading;
+    }
+
+    /**
+     * Acquire manufacturer
+     * @return Manufacturer recorded in Exif (null if not recorded)
+     */
+    public String getMake() {
+        return mMake;
+    }
+
+    /**
+     * Set manufacturer
+     * @param make Manufacturer
+     */
+    public void setMake(String make) {
+        mMake = make;
+    }
+
+    /**
+     * Acquire model name
+     * @return Model name recorded in Exif (null if not recorded)
+     */
+    public String getModel() {
+        return mModel;
+    }
+
+    /**
+     * Set model name
+     * @param model Model name
+     */
+    public void setModel(String model) {
+        mModel = model;
+    }
+
+    /**
+     * Acquire shooting date and time
+     * @return Shooting date and time recorded in Exif, in "YYYY:MM:DD HH:MM:SS" format (null if
+     * not recorded)
+     */
+    public String getDateTimeOriginal() {
+        return mDateTimeOriginal;
+    }
+
+    /**
+     * Set shooting date and time
+     * @param dateTimeOriginal Shooting date and time
+     */
+    public void setDateTimeOriginal(String dateTimeOriginal) {
+        mDateTimeOriginal = dateTimeOriginal;
+    }
+
+    /**
+     * Acquire exposure time
+     * @return Exposure time recorded in Exif (unit: sec, null if not recorded)
+     */
+    public Double getExposureTime() {
+        return mExposureTime;
+    }
+
+    /**
+     * Set exposure time
+     * @param exposureTime Exposure time
+     */
+    public void setExposureTime(Double exposureTime) {
+        mExposureTime = exposureTime;
+    }
+
+    /**
+     * Acquire F-number
+     * @return F-number recorded in Exif (null if not recorded)
+     */
+    public Double getFNumber() {
+        return mFNumber;
+    }
+
+    /**
+     * Set F-number
+     * @param fNumber F-number
+     */
+    public void setFNumber(Double fNumber) {
+        mFNumber = fNumber;
+    }
+
+    /**
+     * Acquire ISO sensitivity
+     * @return ISO sensitivity recorded in Exif (null if not recorded)
+     */
+    public Integer getIsoSpeed() {
+        return mIsoSpeed;
+    }
+
+    /**
+     * Set ISO sensitivity
+     * @param isoSpeed ISO sensitivity
+     */
+    public void setIsoSpeed(Integer isoSpeed) {
+        mIsoSpeed = isoSpeed;
+    }
+
+    /**
+     * Acquire image width
+     * @return Image width recorded in Exif (unit: pixel, 0 if not recorded)
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Set image width
+     * @param width Image width
+     */
+    public void setWidth(int width) {
+        mWidth = width;
+    }
+
+    /**
+     * Acquire image height
+     * @return Image height recorded in Exif (unit: pixel, 0 if not recorded)
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Set image height
+     * @param height Image height
+     */
+    public void setHeight(int height) {
+        mHeight = height;
+    }
+
+    /**
+     * Acquire thumbnail embedded in Exif
+     * @return Encoded JPEG thumbnail (null if not embedded)
+     */
+    public byte[] getThumbnail() {
+        return mThumbnail;
+    }
+
+    /**
+     * Set thumbnail embedded in Exif
+     * @param thumbnail Encoded JPEG thumbnail
+     */
+    public void setThumbnail(byte[] thumbnail) {
+        mThumbnail = thumbnail;
+    }
+
+    /**
+     * Acquire position of the embedded thumbnail in the image file
+     * @return Position from the beginning of the file (unit: bytes, "-1" if not embedded)
+     */
+    public long getThumbnailOffset() {
+        return mThumbnailOffset;
+    }
+
+    /**
+     * Set position of the embedded thumbnail in the image file
+     * @param thumbnailOffset Position from the beginning of the file (unit: bytes)
+     */
+    public void setThumbnailOffset(long thumbnailOffset) {
+        mThumbnailOffset = thumbnailOffset;
+    }
+}
@@ -0,0 +1,581 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Parser of metadata segments at the beginning of a JPEG file<p>
+ * Data is fed in pieces of any size. The parser walks the JPEG markers from the start, skips the
+ * segments it does not need without looking at them, copies only the XMP segment into a segment
+ * buffer and stops there, so the image data is never read. Segment buffers are taken from a pool
+ * shared by all parsers only while an APP1 segment is copied, and pose values are read directly
+ * from the segment bytes, so parsing allocates nothing once the pool holds a buffer. When metadata is requested with
+ * {@link JpegMetadataParser#setMetadata(ImageMetadata)}, the Exif segment is read as well, and
+ * parsing stops only once both segments have been read, whichever comes first.
+ */
+public class JpegMetadataParser {
+    /** Maximum size of a segment (the length field is 16 bits and includes itself) */
+    private final static int MAX_SEGMENT_SIZE = 0xFFFF - 2;
+    private final static int READ_BUFFER_SIZE = 4 * 1024;
+    private final static int MAX_POOLED_SEGMENTS = 4;
+
+    private final static int MARKER_APP1 = 0xE1;
+    private final static int MARKER_SOS = 0xDA;
+    private final static int MARKER_EOI = 0xD9;
+    private final static int MARKER_TEM = 0x01;
+    private final static int MARKER_RST0 = 0xD0;
+    private final static int MARKER_RST7 = 0xD7;
+
+    private final static int STATE_SOI_PREFIX = 0;
+    private final static int STATE_SOI = 1;
+    private final static int STATE_MARKER_PREFIX = 2;
+    private final static int STATE_MARKER = 3;
+    private final static int STATE_LENGTH_HIGH = 4;
+    private final static int STATE_LENGTH_LOW = 5;
+    private final static int STATE_SEGMENT = 6;
+    private final static int STATE_DONE = 7;
+
+    private final static byte[] EXIF_SIGNATURE
+            = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] XMP_SIGNATURE
+            = "http://ns.adobe.com/xap/1.0/\0".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] XMP_TAG_NAME_PITCH
+            = "PosePitchDegrees".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] XMP_TAG_NAME_ROLL
+            = "PoseRollDegrees".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] XMP_TAG_NAME_HEADING
+            = "PoseHeadingDegrees".getBytes(StandardCharsets.US_ASCII);
+    private final static double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final static ConcurrentLinkedQueue<byte[]> sSegmentPool =
+            new ConcurrentLinkedQueue<>();
+
+    /** Buffer of the APP1 segment being copied (null if no segment is copied) */
+    private byte[] mSegment = null;
+    private byte[] mReadBuffer = null;
+    private ImageMetadata mMetadata = null;
+
+    private int mState;
+    private int mMarker;
+    private int mSegmentRemaining;
+    private int mSegmentLength;
+    /** Position of the segment being read in the file */
+    private long mSegmentPosition;
+    private boolean mCapturing;
+    private long mConsumed;
+
+    private boolean mXmpFound;
+    private boolean mExifFound;
+    private double mPosePitchDegrees;
+    private double mPoseRollDegrees;
+    private double mPoseHeadingDegrees;
+
+    /**
+     * Constructor
+     */
+    public JpegMetadataParser() {
+        reset();
+    }
+
+    /**
+     * Prepare for parsing another file
+     */
+    public void reset() {
+        releaseSegment();
+        mState = STATE_SOI_PREFIX;
+        mMarker = 0;
+        mSegmentRemaining = 0;
+        mSegmentLength = 0;
+        mSegmentPosition = 0;
+        mCapturing = false;
+        mConsumed = 0;
+        mXmpFound = false;
+        mExifFound = false;
+        mPosePitchDegrees = Double.NaN;
+        mPoseRollDegrees = Double.NaN;
+        mPoseHeadingDegrees = Double.NaN;
+    }
+
+    /**
+     * Set metadata that receives Exif values and pose values
+     *
+     * @param metadata Metadata (null if only pose values are needed)
+     */
+    public void setMetadata(ImageMetadata metadata) {
+        mMetadata = metadata;
+    }
+
+    /**
+     * Acquire metadata set by {@link JpegMetadataParser#setMetadata(ImageMetadata)}
+     *
+     * @return Metadata
+     */
+    public ImageMetadata getMetadata() {
+        return mMetadata;
+    }
+
+    /**
+     * Feed data that follows the data fed before
+     *
+     * @param data Data
+     * @param offset Start position of the data
+     * @param length Length of the data
+     * @return true:More data is needed, false:Parsing is finished
+     */
+    public boolean feed(byte[] data, int offset, int length) {
+        int position = offset;
+        int end = offset + length;
+        while (position < end && mState != STATE_DONE) {
+            if (mState == STATE_SEGMENT) {
+                int count = Math.min(mSegmentRemaining, end - position);
+                if (mCapturing) {
+                    System.arraycopy(data, position, mSegment, mSegmentLength, count);
+                    mSegmentLength += count;
+                }
+                position += count;
+                mSegmentRemaining -= count;
+                if (mSegmentRemaining == 0) {
+                    endSegment();
+                }
+                continue;
+            }
+
+            int value = data[position++] & 0xFF;
+            switch (mState) {
+                case STATE_SOI_PREFIX:
+                    mState = value == 0xFF ? STATE_SOI : STATE_DONE;
+                    break;
+                case STATE_SOI:
+                    mState = value == 0xD8 ? STATE_MARKER_PREFIX : STATE_DONE;
+                    break;
+                case STATE_MARKER_PREFIX:
+                    mState = value == 0xFF ? STATE_MARKER : STATE_DONE;
+                    break;
+                case STATE_MARKER:
+                    if (value == 0xFF) {
+                        // fill byte
+                    } else if (value == MARKER_SOS || value == MARKER_EOI) {
+                        // no metadata after the image data starts
+                        mState = STATE_DONE;
+                    } else if (value == MARKER_TEM
+                            || (value >= MARKER_RST0 && value <= MARKER_RST7)) {
+                        // marker without segment
+                        mState = STATE_MARKER_PREFIX;
+                    } else {
+                        mMarker = value;
+                        mState = STATE_LENGTH_HIGH;
+                    }
+                    break;
+                case STATE_LENGTH_HIGH:
+                    mSegmentRemaining = value << 8;
+                    mState = STATE_LENGTH_LOW;
+                    break;
+                case STATE_LENGTH_LOW:
+                    mSegmentRemaining = (mSegmentRemaining | value) - 2;
+                    if (mSegmentRemaining < 0) {
+                        mState = STATE_DONE;
+                        break;
+                    }
+                    mCapturing = mMarker == MARKER_APP1;
+                    if (mCapturing && mSegment == null) {
+                        mSegment = acquireSegment();
+                    }
+                    mSegmentLength = 0;
+                    mSegmentPosition = mConsumed + position - offset;
+                    mState = STATE_SEGMENT;
+                    if (mSegmentRemaining == 0) {
+                        endSegment();
+                    }
+                    break;
+            }
+        }
+        mConsumed += position - offset;
+
+        return mState != STATE_DONE;
+    }
+
+    /**
+     * Feed remaining data of buffer that follows the data fed before<p>
+     * The position of the buffer is advanced by the number of bytes fed.
+     *
+     * @param buffer Buffer
+     * @return true:More data is needed, false:Parsing is finished
+     */
+    public boolean feed(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            feed(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return mState != STATE_DONE;
+        }
+        if (mReadBuffer == null) {
+            mReadBuffer = new byte[READ_BUFFER_SIZE];
+        }
+        while (buffer.hasRemaining() && mState != STATE_DONE) {
+            int length = Math.min(buffer.remaining(), mReadBuffer.length);
+            buffer.get(mReadBuffer, 0, length);
+            feed(mReadBuffer, 0, length);
+        }
+        return mState != STATE_DONE;
+    }
+
+    /**
+     * Parse stream until the metadata is found<p>
+     * The stream is not read beyond the buffer in which parsing finishes.
+     *
+     * @param is Stream positioned at the beginning of a JPEG file
+     * @return true:XMP found, false:XMP not found
+     * @throws IOException IO error
+     */
+    public boolean parse(InputStream is) throws IOException {
+        if (mReadBuffer == null) {
+            mReadBuffer = new byte[READ_BUFFER_SIZE];
+        }
+        int length;
+        while (mState != STATE_DONE && (length = is.read(mReadBuffer)) >= 0) {
+            feed(mReadBuffer, 0, length);
+        }
+        return mXmpFound;
+    }
+
+    /**
+     * Read metadata of a locally stored image<p>
+     * Only the beginning of the file up to the XMP and Exif segments is read.
+     *
+     * @param file Image file
+     * @return Metadata, including the thumbnail embedded in Exif (null is returned if the file
+     * cannot be read)
+     */
+    public static ImageMetadata readFile(File file) {
+        ImageMetadata metadata = new ImageMetadata();
+        JpegMetadataParser parser = new JpegMetadataParser();
+        parser.setMetadata(metadata);
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            parser.parse(fis);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Check whether parsing is finished
+     *
+     * @return true:Finished, false:More data is needed
+     */
+    public boolean isDone() {
+        return mState == STATE_DONE;
+    }
+
+    /**
+     * Acquire number of bytes that can be skipped without feeding them<p>
+     * This is the rest of the current segment when the segment is not needed.
+     *
+     * @return Number of bytes
+     */
+    public int getSkippableSize() {
+        return mState == STATE_SEGMENT && !mCapturing ? mSegmentRemaining : 0;
+    }
+
+    /**
+     * Skip bytes that are not needed
+     *
+     * @param count Number of bytes (up to {@link JpegMetadataParser#getSkippableSize()})
+     */
+    public void skip(int count) {
+        if (count < 0 || count > getSkippableSize()) {
+            throw new IllegalArgumentException("count must be within the skippable size");
+        }
+        mSegmentRemaining -= count;
+        mConsumed += count;
+        if (count > 0 && mSegmentRemaining == 0) {
+            endSegment();
+        }
+    }
+
+    /**
+     * Acquire number of bytes needed to complete the segment being read
+     *
+     * @return Number of bytes (0 if no segment is being read)
+     */
+    public int getSegmentRemainingSize() {
+        return mState == STATE_SEGMENT ? mSegmentRemaining : 0;
+    }
+
+    /**
+     * Acquire number of bytes used before parsing finished
+     *
+     * @return Number of bytes
+     */
+    public long getConsumedSize() {
+        return mConsumed;
+    }
+
+    /**
+     * Check whether XMP segment was found
+     *
+     * @return true:Found, false:Not found
+     */
+    public boolean isXmpFound() {
+        return mXmpFound;
+    }
+
+    /**
+     * Acquire pitch angle set for XMP
+     *
+     * @return Pitch angle (NaN is returned if it is not set)
+     */
+    public double getPosePitchDegrees() {
+        return mPosePitchDegrees;
+    }
+
+    /**
+     * Acquire roll angle set for XMP
+     *
+     * @return Roll angle (NaN is returned if it is not set)
+     */
+    public double getPoseRollDegrees() {
+        return mPoseRollDegrees;
+    }
+
+    /**
+     * Acquire heading angle set for XMP
+     *
+     * @return Heading angle (NaN is returned if it is not set)
+     */
+    public double getPoseHeadingDegrees() {
+        return mPoseHeadingDegrees;
+    }
+
+    private void endSegment() {
+        mState = STATE_MARKER_PREFIX;
+        if (!mCapturing) {
+            return;
+        }
+        mCapturing = false;
+        if (startsWith(mSegment, mSegmentLength, XMP_SIGNATURE)) {
+            int start = XMP_SIGNATURE.length;
+            mPosePitchDegrees = findValue(mSegment, start, mSegmentLength, XMP_TAG_NAME_PITCH);
+            mPoseRollDegrees = findValue(mSegment, start, mSegmentLength, XMP_TAG_NAME_ROLL);
+            mPoseHeadingDegrees = findValue(mSegment, start, mSegmentLength,
+                    XMP_TAG_NAME_HEADING);
+            mXmpFound = true;
+            if (mMetadata == null || mExifFound) {
+                mState = STATE_DONE;
+            }
+            if (mMetadata != null) {
+                mMetadata.setPitch(toDouble(mPosePitchDegrees));
+                mMetadata.setRoll(toDouble(mPoseRollDegrees));
+                mMetadata.setHeading(toDouble(mPoseHeadingDegrees));
+            }
+        } else if (mMetadata != null && startsWith(mSegment, mSegmentLength, EXIF_SIGNATURE)) {
+            mExifFound = ExifReader.read(mSegment, EXIF_SIGNATURE.length, mSegmentLength,
+                    mSegmentPosition, mMetadata);
+            if (mExifFound && mXmpFound) {
+                mState = STATE_DONE;
+            }
+        }
+        releaseSegment();
+    }
+
+    private static byte[] acquireSegment() {
+        byte[] segment = sSegmentPool.poll();
+        return segment != null ? segment : new byte[MAX_SEGMENT_SIZE];
+    }
+
+    private void releaseSegment() {
+        if (mSegment == null) {
+            return;
+        }
+        if (sSegmentPool.size() < MAX_POOLED_SEGMENTS) {
+            sSegmentPool.offer(mSegment);
+        }
+        mSegment = null;
+    }
+
+    private static Double toDouble(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int index = 0; index < prefix.length; index++) {
+            if (data[index] != prefix[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Search value of a property written either as an element (&lt;ns:Name&gt;1.0&lt;/ns:Name&gt;)
+     * or as an attribute (ns:Name="1.0")
+     *
+     * @return Value of the property (NaN is returned if it is not found)
+     */
+    private static double findValue(byte[] data, int start, int end, byte[] name) {
+        int last = end - name.length;
+        for (int index = start + 1; index <= last; index++) {
+            byte previous = data[index - 1];
+            if (previous != ':' && previous != '<' && !isWhitespace(previous)) {
+                continue;
+            }
+            if (!matches(data, index, name)) {
+                continue;
+            }
+
+            int position = skipWhitespace(data, index + name.length, end);
+            if (position >= end) {
+                break;
+            }
+            if (data[position] == '>') {
+                position = skipWhitespace(data, position + 1, end);
+            } else if (data[position] == '=') {
+                position = skipWhitespace(data, position + 1, end);
+                if (position < end && (data[position] == '"' || data[position] == '\'')) {
+                    position++;
+                }
+            } else {
+                continue;
+            }
+
+            double value = parseDouble(data, position, end);
+            if (!Double.isNaN(value)) {
+                return value;
+            }
+            // closing tag or empty value, keep searching
+        }
+        return Double.NaN;
+    }
+
+    private static boolean matches(byte[] data, int position, byte[] name) {
+        for (int index = 0; index < name.length; index++) {
+            if (data[position + index] != name[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte value) {
+        return value == ' ' || value == '\t' || value == '\n' || value == '\r';
+    }
+
+    private static int skipWhitespace(byte[] data, int position, int end) {
+        while (position < end && isWhitespace(data[position])) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Parse decimal number such as "-12.5" or "1.0E-3"
+     *
+     * @return Parsed value (NaN is returned if there is no number at the position)
+     */
+    private static double parseDouble(byte[] data, int position, int end) {
+        boolean negative = false;
+        if (position < end && (data[position] == '-' || data[position] == '+')) {
+            negative = data[position] == '-';
+            position++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean fraction = false;
+        int digitCount = 0;
+        for (; position < end; position++) {
+            byte value = data[position];
+            if (value >= '0' && value <= '9') {
+                digitCount++;
+                if (digits < 18) {
+                    mantissa = mantissa * 10 + (value - '0');
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                    if (fraction) {
+                        scale--;
+                    }
+                } else if (!fraction) {
+                    // digits beyond long precision
+                    scale++;
+                }
+            } else if (value == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digitCount == 0) {
+            return Double.NaN;
+        }
+
+        if (position < end && (data[position] == 'e' || data[position] == 'E')) {
+            int exponentPosition = position + 1;
+            boolean negativeExponent = false;
+            if (exponentPosition < end
+                    && (data[exponentPosition] == '-' || data[exponentPosition] == '+')) {
+                negativeExponent = data[exponentPosition] == '-';
+                exponentPosition++;
+            }
+            int exponent = 0;
+            int exponentDigits = 0;
+            while (exponentPosition < end && data[exponentPosition] >= '0'
+                    && data[exponentPosition] <= '9' && exponent < 1000) {
+                exponent = exponent * 10 + (data[exponentPosition++] - '0');
+                exponentDigits++;
+            }
+            if (exponentDigits > 0) {
+                scale += negativeExponent ? -exponent : exponent;
+            }
+        }
+
+        double result = mantissa;
+        if (scale < 0) {
+            result = -scale < POWERS_OF_TEN.length ? result / POWERS_OF_TEN[-scale]
+                    : result / Math.pow(10, -scale);
+        } else if (scale > 0) {
+            result = scale < POWERS_OF_TEN.length ? result * POWERS_OF_TEN[scale]
+                    : result * Math.pow(10, scale);
+        }
+
+        return negative ? -result : result;
+    }
+}
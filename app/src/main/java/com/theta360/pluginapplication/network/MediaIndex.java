@@ -0,0 +1,367 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Local index of media files on device<p>
+ * The index is persisted to a file and synchronized incrementally: nothing is listed while the
+ * state fingerprint is unchanged, and otherwise files are listed from the newest and compared with
+ * the index by ID until the number of files on the device is explained by the files added and
+ * deleted so far. Deleting recent files therefore lists only the first pages. The whole card is
+ * listed again only when the storage is switched or the listing does not match the index.
+ */
+public class MediaIndex {
+    private final static int FILE_VERSION = 1;
+    private final static int INCREMENTAL_PAGE_SIZE = 10;
+    private final static int RESULT_FAILED = -1;
+    private final static int RESULT_UNCHANGED = 0;
+    private final static int RESULT_CHANGED = 1;
+
+    private final HttpConnector mConnector;
+    private final File mIndexFile;
+
+    /** Media files keyed by file ID, newest first */
+    private LinkedHashMap<String, ImageInfo> mEntries = new LinkedHashMap<>();
+    private String mFingerprint = null;
+    private String mStorageUri = null;
+
+    /**
+     * Constructor<p>
+     * The index saved in the specified file is loaded if it exists.
+     *
+     * @param connector Connector used for synchronization
+     * @param indexFile File where the index is saved
+     */
+    public MediaIndex(HttpConnector connector, File indexFile) {
+        mConnector = connector;
+        mIndexFile = indexFile;
+        load();
+    }
+
+    /**
+     * Synchronize index with device
+     *
+     * @return true:Index changed, false:Index not changed or synchronization failed
+     */
+    public synchronized boolean sync() {
+        CameraState cameraState = mConnector.getCameraState();
+        if (cameraState == null) {
+            return false;
+        }
+        if (cameraState.getFingerprint().equals(mFingerprint)) {
+            return false;
+        }
+
+        int result;
+        if (mEntries.isEmpty()
+                || (mStorageUri != null && !mStorageUri.equals(cameraState.getStorageUri()))) {
+            // first synchronization, or storage was switched or formatted
+            result = rebuild();
+        } else {
+            result = update();
+        }
+        if (result == RESULT_FAILED) {
+            // keep the old fingerprint so that the next synchronization retries
+            return false;
+        }
+
+        mFingerprint = cameraState.getFingerprint();
+        mStorageUri = cameraState.getStorageUri();
+        save();
+
+        return result == RESULT_CHANGED;
+    }
+
+    /**
+     * Acquire media file
+     *
+     * @param fileId File ID
+     * @return Media file information (null is returned if the file is not in the index)
+     */
+    public synchronized ImageInfo get(String fileId) {
+        return mEntries.get(fileId);
+    }
+
+    /**
+     * Check whether media file is in the index
+     *
+     * @param fileId File ID
+     * @return true:In the index, false:Not in the index
+     */
+    public synchronized boolean contains(String fileId) {
+        return mEntries.containsKey(fileId);
+    }
+
+    /**
+     * Acquire all media files
+     *
+     * @return Media file list (newest first)
+     */
+    public synchronized ArrayList<ImageInfo> getAll() {
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * Acquire number of media files
+     *
+     * @return Number of media files
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Remove deleted files from the index without listing the device
+     *
+     * @param fileIds File ID's
+     */
+    public synchronized void remove(Collection<String> fileIds) {
+        boolean changed = false;
+        for (String fileId : fileIds) {
+            changed |= mEntries.remove(fileId) != null;
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    /**
+     * Add new files and remove deleted files by comparing the listing with the index from the
+     * newest, and relist the card if they cannot be reconciled
+     *
+     * @return Result of synchronization
+     */
+    private int update() {
+        ArrayList<ImageInfo> newEntries = new ArrayList<>();
+        HashSet<String> deletedIds = new HashSet<>();
+        Iterator<String> indexedIds = mEntries.keySet().iterator();
+        int matchedCount = 0;
+        boolean reconciled = false;
+        boolean unordered = false;
+
+        ImageInfoCursor cursor = mConnector.openList(INCREMENTAL_PAGE_SIZE);
+        try {
+            while (cursor.hasNext()) {
+                ImageInfo imageInfo = cursor.next();
+                String fileId = imageInfo.getFileId();
+                if (!mEntries.containsKey(fileId)) {
+                    if (matchedCount > 0) {
+                        // a file older than indexed files was added, the order is unknown
+                        unordered = true;
+                        break;
+                    }
+                    newEntries.add(imageInfo);
+                    continue;
+                }
+
+                // indexed files newer than the listed one were deleted
+                boolean found = false;
+                while (indexedIds.hasNext()) {
+                    String indexedId = indexedIds.next();
+                    if (indexedId.equals(fileId)) {
+                        found = true;
+                        break;
+                    }
+                    deletedIds.add(indexedId);
+                }
+                if (!found) {
+                    // listed out of the order of the index
+                    unordered = true;
+                    break;
+                }
+                matchedCount++;
+
+                // without the total, older deletions are found only by listing to the end
+                int totalEntries = cursor.getTotalEntries();
+                if (totalEntries >= 0 && totalEntries
+                        == mEntries.size() - deletedIds.size() + newEntries.size()) {
+                    // the rest of the card is the same as the index
+                    reconciled = true;
+                    break;
+                }
+            }
+            if (cursor.isFailed()) {
+                return RESULT_FAILED;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (unordered) {
+            return rebuild();
+        }
+        if (!reconciled) {
+            // the whole card was listed, the files not listed were deleted
+            while (indexedIds.hasNext()) {
+                deletedIds.add(indexedIds.next());
+            }
+        }
+        if (newEntries.isEmpty() && deletedIds.isEmpty()) {
+            return RESULT_UNCHANGED;
+        }
+
+        LinkedHashMap<String, ImageInfo> entries = new LinkedHashMap<>();
+        for (ImageInfo imageInfo : newEntries) {
+            entries.put(imageInfo.getFileId(), imageInfo);
+        }
+        for (Map.Entry<String, ImageInfo> entry : mEntries.entrySet()) {
+            if (!deletedIds.contains(entry.getKey())) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        mEntries = entries;
+        return RESULT_CHANGED;
+    }
+
+    /**
+     * List the whole card and replace the index
+     *
+     * @return Result of synchronization
+     */
+    private int rebuild() {
+        LinkedHashMap<String, ImageInfo> entries = new LinkedHashMap<>();
+
+        ImageInfoCursor cursor = mConnector.openList(ImageInfoCursor.DEFAULT_PAGE_SIZE);
+        try {
+            while (cursor.hasNext()) {
+                ImageInfo imageInfo = cursor.next();
+                entries.put(imageInfo.getFileId(), imageInfo);
+            }
+            if (cursor.isFailed()) {
+                return RESULT_FAILED;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        boolean changed = !entries.keySet().equals(mEntries.keySet());
+        mEntries = entries;
+        return changed ? RESULT_CHANGED : RESULT_UNCHANGED;
+    }
+
+    /**
+     * Load index from file
+     */
+    private void load() {
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (dis.readInt() != FILE_VERSION) {
+                return;
+            }
+            String fingerprint = readNullableString(dis);
+            String storageUri = readNullableString(dis);
+            int count = dis.readInt();
+            LinkedHashMap<String, ImageInfo> entries = new LinkedHashMap<>();
+            for (int index = 0; index < count; index++) {
+                ImageInfo imageInfo = new ImageInfo();
+                imageInfo.setFileId(dis.readUTF());
+                imageInfo.setFileName(readNullableString(dis));
+                imageInfo.setFileSize(dis.readLong());
+                imageInfo.setCaptureDate(readNullableString(dis));
+                imageInfo.setFileFormat(readNullableString(dis));
+                imageInfo.setWidth(dis.readInt());
+                imageInfo.setHeight(dis.readInt());
+                entries.put(imageInfo.getFileId(), imageInfo);
+            }
+            mEntries = entries;
+            mFingerprint = fingerprint;
+            mStorageUri = storageUri;
+        } catch (FileNotFoundException e) {
+            // no index saved yet
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Save index to file<p>
+     * The index is written to a temporary file first so that a crash never leaves a broken index.
+     */
+    private void save() {
+        File tempFile = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            dos.writeInt(FILE_VERSION);
+            writeNullableString(dos, mFingerprint);
+            writeNullableString(dos, mStorageUri);
+            dos.writeInt(mEntries.size());
+            for (Map.Entry<String, ImageInfo> entry : mEntries.entrySet()) {
+                ImageInfo imageInfo = entry.getValue();
+                dos.writeUTF(entry.getKey());
+                writeNullableString(dos, imageInfo.getFileName());
+                dos.writeLong(imageInfo.getFileSize());
+                writeNullableString(dos, imageInfo.getCaptureDate());
+                writeNullableString(dos, imageInfo.getFileFormat());
+                dos.writeInt(imageInfo.getWidth());
+                dos.writeInt(imageInfo.getHeight());
+            }
+            dos.close();
+            dos = null;
+            if (!tempFile.renameTo(mIndexFile)) {
+                throw new IOException("Failed to replace " + mIndexFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (dos != null) {
+                try {
+                    dos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static String readNullableString(DataInputStream dis) throws IOException {
+        return dis.readBoolean() ? dis.readUTF() : null;
+    }
+
+    private static void writeNullableString(DataOutputStream dos, String value)
+            throws IOException {
+        dos.writeBoolean(value != null);
+        if (value != null) {
+            dos.writeUTF(value);
+        }
+    }
+}
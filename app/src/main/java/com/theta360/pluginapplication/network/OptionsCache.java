@@ -0,0 +1,281 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Cache of camera.getOptions results<p>
+ * Option values are kept for a time to live, and all values are discarded when the device status
+ * changes. Options requested while a request is in progress are gathered and acquired together
+ * by the next request, so callers on several threads share one camera.getOptions per round trip.
+ */
+public class OptionsCache {
+    public final static long DEFAULT_TTL_MS = 2000;
+
+    private final HttpConnector mConnector;
+    private final long mTtlNanos;
+    private final Object mLock = new Object();
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    /** Incremented on invalidation so that values requested before it are not cached */
+    private long mGeneration = 0;
+    private Batch mInFlightBatch = null;
+    private Batch mPendingBatch = null;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mRequestCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param connector Connector that sends camera.getOptions
+     * @param ttlMillis Time for which a value is reused (unit: ms)
+     */
+    OptionsCache(HttpConnector connector, long ttlMillis) {
+        mConnector = connector;
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Acquire option values
+     *
+     * @param optionNames Option names
+     * @return Option values keyed by option name (options unknown to the device are missing)
+     * @throws IOException IO error or error response
+     * @throws JSONException JSON error
+     */
+    public JSONObject get(String... optionNames) throws IOException, JSONException {
+        Batch batch;
+        boolean sender = false;
+        synchronized (mLock) {
+            JSONObject options = getCached(optionNames);
+            if (options != null) {
+                mHitCount.incrementAndGet();
+                return options;
+            }
+            mMissCount.incrementAndGet();
+
+            if (mInFlightBatch != null && mInFlightBatch.containsAll(optionNames)) {
+                batch = mInFlightBatch;
+            } else {
+                // join the batch sent after the request in progress
+                if (mPendingBatch == null) {
+                    mPendingBatch = new Batch();
+                }
+                batch = mPendingBatch;
+                for (String optionName : optionNames) {
+                    batch.mOptionNames.add(optionName);
+                }
+            }
+            while (!batch.mDone) {
+                if (batch == mPendingBatch && mInFlightBatch == null) {
+                    mPendingBatch = null;
+                    mInFlightBatch = batch;
+                    sender = true;
+                    break;
+                }
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for camera.getOptions");
+                }
+            }
+        }
+
+        if (sender) {
+            send(batch);
+        }
+        if (batch.mError != null) {
+            rethrow(batch.mError);
+        }
+        return batch.getValues(optionNames);
+    }
+
+    /**
+     * Discard all values (called when the device status changed)
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mGeneration++;
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Discard value of an option (called after the option was set)
+     *
+     * @param optionName Option name
+     */
+    public void invalidate(String optionName) {
+        synchronized (mLock) {
+            mGeneration++;
+            mEntries.remove(optionName);
+        }
+    }
+
+    /**
+     * Acquire number of requests answered from the cache
+     *
+     * @return Number of requests
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Acquire number of requests that needed camera.getOptions
+     *
+     * @return Number of requests
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Acquire ratio of requests answered from the cache
+     *
+     * @return Hit rate (0.0 to 1.0)
+     */
+    public double getHitRate() {
+        long hitCount = mHitCount.get();
+        long total = hitCount + mMissCount.get();
+        return total > 0 ? (double) hitCount / total : 0.0d;
+    }
+
+    /**
+     * Acquire number of camera.getOptions sent
+     *
+     * @return Number of requests
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Acquire values of the options if all of them are cached and not expired
+     *
+     * @return Option values (null is returned if a value is missing)
+     */
+    private JSONObject getCached(String[] optionNames) throws JSONException {
+        long now = System.nanoTime();
+        JSONObject options = new JSONObject();
+        for (String optionName : optionNames) {
+            Entry entry = mEntries.get(optionName);
+            if (entry == null || now - entry.mTimeNanos > mTtlNanos) {
+                return null;
+            }
+            if (entry.mValue != null) {
+                options.put(optionName, entry.mValue);
+            }
+        }
+        return options;
+    }
+
+    private void send(Batch batch) {
+        long generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+        mRequestCount.incrementAndGet();
+
+        JSONObject options = null;
+        Exception error = null;
+        try {
+            options = mConnector.requestOptions(batch.mOptionNames);
+        } catch (IOException | JSONException | RuntimeException e) {
+            error = e;
+        }
+
+        synchronized (mLock) {
+            long now = System.nanoTime();
+            batch.mOptions = options;
+            batch.mError = error;
+            batch.mDone = true;
+            if (options != null && generation == mGeneration) {
+                for (String optionName : batch.mOptionNames) {
+                    mEntries.put(optionName, new Entry(options.opt(optionName), now));
+                }
+            }
+            mInFlightBatch = null;
+            mLock.notifyAll();
+        }
+    }
+
+    private static void rethrow(Exception error) throws IOException, JSONException {
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error instanceof JSONException) {
+            throw (JSONException) error;
+        }
+        throw (RuntimeException) error;
+    }
+
+    private static class Entry {
+        /** Value (null if the device does not know the option) */
+        private final Object mValue;
+        private final long mTimeNanos;
+
+        private Entry(Object value, long timeNanos) {
+            mValue = value;
+            mTimeNanos = timeNanos;
+        }
+    }
+
+    /**
+     * Options acquired by one camera.getOptions
+     */
+    private static class Batch {
+        private final LinkedHashSet<String> mOptionNames = new LinkedHashSet<>();
+        private boolean mDone = false;
+        private JSONObject mOptions = null;
+        private Exception mError = null;
+
+        private boolean containsAll(String[] optionNames) {
+            for (String optionName : optionNames) {
+                if (!mOptionNames.contains(optionName)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Acquire values of the options from the response
+         *
+         * @return Option values
+         */
+        private JSONObject getValues(String[] optionNames) throws JSONException {
+            JSONObject options = new JSONObject();
+            for (String optionName : optionNames) {
+                Object value = mOptions.opt(optionName);
+                if (value != null) {
+                    options.put(optionName, value);
+                }
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduler of status checks of in-progress commands<p>
+ * All status checks share a few scheduler threads instead of a timer thread each. The interval
+ * adapts to each kind of command: the completion time is averaged per key (for example the command
+ * name and the shooting size), the first check is sent shortly before the expected completion, and
+ * the following checks start at {@link StatusPollScheduler#MIN_INTERVAL_MS} and back off up to
+ * {@link StatusPollScheduler#MAX_INTERVAL_MS}. Checks of an unknown key start at the minimum
+ * interval. A check stops as soon as the device reports that the command failed.
+ */
+public class StatusPollScheduler {
+    public final static long MIN_INTERVAL_MS = 50;
+    public final static long MAX_INTERVAL_MS = 1000;
+    public final static long DEFAULT_TIMEOUT_MS = 60000;
+    public final static int DEFAULT_THREAD_COUNT = 2;
+    /** Ratio of the interval between consecutive checks */
+    private final static double BACKOFF = 1.5d;
+    /** The first check is sent at this ratio of the expected completion time */
+    private final static double FIRST_POLL_RATIO = 0.9d;
+    /** Weight of the latest completion time in the average */
+    private final static double SMOOTHING = 0.3d;
+
+    private final static StatusPollScheduler DEFAULT_SCHEDULER =
+            new StatusPollScheduler(DEFAULT_THREAD_COUNT, DEFAULT_TIMEOUT_MS);
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private final long mTimeoutNanos;
+    private final HashMap<String, Double> mCompletionMillis = new HashMap<>();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mTimedOutCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param threadCount Number of scheduler threads
+     * @param timeoutMillis Time after which a command that is not completed is given up
+     */
+    public StatusPollScheduler(int threadCount, long timeoutMillis) {
+        mExecutor = new ScheduledThreadPoolExecutor(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "StatusPoll");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Acquire scheduler shared by all connectors
+     *
+     * @return Scheduler
+     */
+    public static StatusPollScheduler getDefault() {
+        return DEFAULT_SCHEDULER;
+    }
+
+    /**
+     * Start checking status of a command
+     *
+     * @param key Key of the kind of command whose completion times are averaged together
+     * @param poll Status check
+     */
+    public void schedule(String key, Poll poll) {
+        PollTask task = new PollTask(key, poll);
+        double expectedMillis = getExpectedCompletionMillis(key);
+        long delay = expectedMillis < 0 ? MIN_INTERVAL_MS
+                : Math.max(MIN_INTERVAL_MS, (long) (expectedMillis * FIRST_POLL_RATIO));
+        mExecutor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acquire averaged completion time of a kind of command
+     *
+     * @param key Key of the kind of command
+     * @return Completion time (unit: ms, "-1" if no command of the key was completed)
+     */
+    public double getExpectedCompletionMillis(String key) {
+        synchronized (mCompletionMillis) {
+            Double completionMillis = mCompletionMillis.get(key);
+            return completionMillis != null ? completionMillis : -1;
+        }
+    }
+
+    /**
+     * Acquire number of status check requests sent
+     *
+     * @return Number of requests
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * Acquire number of commands whose completion was detected
+     *
+     * @return Number of commands
+     */
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * Acquire number of commands given up by the timeout
+     *
+     * @return Number of commands
+     */
+    public long getTimedOutCount() {
+        return mTimedOutCount.get();
+    }
+
+    /**
+     * Acquire number of commands reported as failed by the device
+     *
+     * @return Number of commands
+     */
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    /**
+     * Stop all status checks
+     *
+     * @throws IllegalStateException Called on the shared scheduler, which is used by all
+     * connectors
+     */
+    public void shutdown() {
+        if (this == DEFAULT_SCHEDULER) {
+            throw new IllegalStateException("The shared scheduler must not be shut down");
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void recordCompletion(String key, double millis) {
+        synchronized (mCompletionMillis) {
+            Double average = mCompletionMillis.get(key);
+            mCompletionMillis.put(key,
+                    average == null ? millis : average + (millis - average) * SMOOTHING);
+        }
+    }
+
+    private class PollTask implements Runnable {
+        private final String mKey;
+        private final Poll mPoll;
+        private final long mStartNanos = System.nanoTime();
+        private long mInterval = MIN_INTERVAL_MS;
+
+        private PollTask(String key, Poll poll) {
+            mKey = key;
+            mPoll = poll;
+        }
+
+        @Override
+        public void run() {
+            mRequestCount.incrementAndGet();
+            boolean completed;
+            try {
+                completed = mPoll.poll();
+            } catch (IOException e) {
+                // not counted as a completion, the device gave up early
+                mFailedCount.incrementAndGet();
+                deliver(() -> mPoll.onError(e.getMessage()));
+                return;
+            } catch (RuntimeException e) {
+                // checking again would most likely fail the same way
+                e.printStackTrace();
+                mFailedCount.incrementAndGet();
+                deliver(() -> mPoll.onError(e.toString()));
+                return;
+            }
+
+            long elapsed = System.nanoTime() - mStartNanos;
+            if (completed) {
+                mCompletedCount.incrementAndGet();
+                recordCompletion(mKey, elapsed / 1e6d);
+                deliver(mPoll::onCompleted);
+            } else if (elapsed >= mTimeoutNanos) {
+                mTimedOutCount.incrementAndGet();
+                deliver(mPoll::onTimeout);
+            } else if (!mExecutor.isShutdown()) {
+                deliver(mPoll::onInProgress);
+                mExecutor.schedule(this, mInterval, TimeUnit.MILLISECONDS);
+                mInterval = Math.min(MAX_INTERVAL_MS, (long) (mInterval * BACKOFF));
+            }
+        }
+    }
+
+    /**
+     * Call a notification of a status check, so that an exception does not restart the check
+     */
+    private static void deliver(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Status check of a command<p>
+     * {@link Poll#poll()} only acquires the status, and listeners are notified from the other
+     * methods, which are called once the status is known.
+     */
+    public interface Poll {
+        /**
+         * Check status (called on a scheduler thread)
+         *
+         * @return true:Completed, false:Check again later
+         * @throws IOException The device reported that the command failed
+         */
+        boolean poll() throws IOException;
+
+        /**
+         * Notifies you that the command was completed
+         */
+        default void onCompleted() {
+        }
+
+        /**
+         * Notifies you that the command is still in progress and is checked again later
+         */
+        default void onInProgress() {
+        }
+
+        /**
+         * Notifies you that the command was not completed within the timeout
+         */
+        default void onTimeout() {
+        }
+
+        /**
+         * Notifies you that the device reported that the command failed
+         *
+         * @param errorMessage Error message
+         */
+        default void onError(String errorMessage) {
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier thumbnail cache<p>
+ * Decoded thumbnails are kept in a memory LRU limited by byte count, and encoded thumbnails are
+ * kept in a disk LRU limited by byte count. Entries are keyed by file URL.
+ * <p>
+ * A fetch that may race with the deletion of its file acquires {@link ThumbnailCache#getGeneration()}
+ * before it starts and passes it to {@link ThumbnailCache#put(String, byte[], Bitmap, long)}, so
+ * that a thumbnail removed while it was being fetched is not stored again.
+ */
+public class ThumbnailCache {
+    private final static String FILE_SUFFIX = ".jpg";
+    /** Number of removed file ID's remembered to reject thumbnails fetched before the removal */
+    private final static int MAX_REMOVED_ENTRIES = 256;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDiskDirectory;
+    private final long mMaxDiskBytes;
+    /** Disk cache file name to size, in access order */
+    private final LinkedHashMap<String, Long> mDiskEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mDiskBytes = 0;
+    /** Generation incremented by each removal */
+    private long mGeneration = 0;
+    /** Generation of the removal of each removed file ID, in removal order */
+    private final LinkedHashMap<String, Long> mRemovedGenerations = new LinkedHashMap<>();
+    /** Thumbnails fetched before this generation are rejected, because their removal is forgotten */
+    private long mForgottenGeneration = 0;
+
+    private final AtomicLong mMemoryHitCount = new AtomicLong();
+    private final AtomicLong mDiskHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mMemoryEvictionCount = new AtomicLong();
+    private final AtomicLong mDiskEvictionCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param maxMemoryBytes Maximum size of decoded thumbnails kept in memory (unit: bytes)
+     * @param diskDirectory Directory of disk cache (null if disk cache is not used)
+     * @param maxDiskBytes Maximum size of encoded thumbnails kept on disk (unit: bytes)
+     */
+    public ThumbnailCache(int maxMemoryBytes, File diskDirectory, long maxDiskBytes) {
+        mMemoryCache = new LruCache<String, Bitmap>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (evicted) {
+                    mMemoryEvictionCount.incrementAndGet();
+                }
+            }
+        };
+        mDiskDirectory = diskDirectory;
+        mMaxDiskBytes = maxDiskBytes;
+        if (mDiskDirectory != null) {
+            loadDiskEntries();
+        }
+    }
+
+    /**
+     * Acquire thumbnail
+     *
+     * @param fileId File ID
+     * @return Thumbnail (null is returned if it is not cached)
+     */
+    public Bitmap get(String fileId) {
+        Bitmap thumbnail = mMemoryCache.get(fileId);
+        if (thumbnail != null) {
+            mMemoryHitCount.incrementAndGet();
+            return thumbnail;
+        }
+
+        byte[] encoded = readDisk(fileId);
+        if (encoded != null) {
+            thumbnail = BitmapFactory.decodeByteArray(encoded, 0, encoded.length);
+            if (thumbnail != null) {
+                mDiskHitCount.incrementAndGet();
+                mMemoryCache.put(fileId, thumbnail);
+                return thumbnail;
+            }
+        }
+
+        mMissCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store thumbnail
+     *
+     * @param fileId File ID
+     * @param encoded Encoded thumbnail stored on disk (null if only stored in memory)
+     * @param thumbnail Decoded thumbnail
+     */
+    public void put(String fileId, byte[] encoded, Bitmap thumbnail) {
+        if (thumbnail != null) {
+            mMemoryCache.put(fileId, thumbnail);
+        }
+        if (encoded != null) {
+            writeDisk(fileId, encoded);
+        }
+    }
+
+    /**
+     * Acquire current generation, which is passed to
+     * {@link ThumbnailCache#put(String, byte[], Bitmap, long)} after fetching a thumbnail
+     *
+     * @return Generation
+     */
+    public long getGeneration() {
+        synchronized (mRemovedGenerations) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Store thumbnail unless it was removed after the fetch started
+     *
+     * @param fileId File ID
+     * @param encoded Encoded thumbnail stored on disk (null if only stored in memory)
+     * @param thumbnail Decoded thumbnail
+     * @param generation Generation acquired by {@link ThumbnailCache#getGeneration()} before the
+     * fetch started
+     * @return true:Stored, false:Rejected
+     */
+    public boolean put(String fileId, byte[] encoded, Bitmap thumbnail, long generation) {
+        synchronized (mRemovedGenerations) {
+            Long removedGeneration = mRemovedGenerations.get(fileId);
+            if (generation < mForgottenGeneration
+                    || (removedGeneration != null && generation < removedGeneration)) {
+                return false;
+            }
+            // stored while locked so that a removal cannot come between the check and the store
+            put(fileId, encoded, thumbnail);
+        }
+        return true;
+    }
+
+    /**
+     * Remove thumbnail (for example when the file is deleted)
+     *
+     * @param fileId File ID
+     */
+    public void remove(String fileId) {
+        synchronized (mRemovedGenerations) {
+            mGeneration++;
+            mRemovedGenerations.remove(fileId);
+            mRemovedGenerations.put(fileId, mGeneration);
+            if (mRemovedGenerations.size() > MAX_REMOVED_ENTRIES) {
+                Iterator<Map.Entry<String, Long>> iterator =
+                        mRemovedGenerations.entrySet().iterator();
+                mForgottenGeneration = iterator.next().getValue();
+                iterator.remove();
+            }
+            removeEntry(fileId);
+        }
+    }
+
+    private void removeEntry(String fileId) {
+        mMemoryCache.remove(fileId);
+        if (mDiskDirectory == null) {
+            return;
+        }
+        String name = toFileName(fileId);
+        synchronized (mDiskEntries) {
+            Long size = mDiskEntries.remove(name);
+            if (size != null) {
+                mDiskBytes -= size;
+            }
+            new File(mDiskDirectory, name).delete();
+        }
+    }
+
+    /**
+     * Remove all thumbnails
+     */
+    public void clear() {
+        synchronized (mRemovedGenerations) {
+            mGeneration++;
+            mRemovedGenerations.clear();
+            mForgottenGeneration = mGeneration;
+        }
+        mMemoryCache.evictAll();
+        if (mDiskDirectory == null) {
+            return;
+        }
+        synchronized (mDiskEntries) {
+            for (String name : mDiskEntries.keySet()) {
+                new File(mDiskDirectory, name).delete();
+            }
+            mDiskEntries.clear();
+            mDiskBytes = 0;
+        }
+    }
+
+    /**
+     * Acquire number of hits in memory
+     *
+     * @return Number of hits
+     */
+    public long getMemoryHitCount() {
+        return mMemoryHitCount.get();
+    }
+
+    /**
+     * Acquire number of hits on disk
+     *
+     * @return Number of hits
+     */
+    public long getDiskHitCount() {
+        return mDiskHitCount.get();
+    }
+
+    /**
+     * Acquire number of misses
+     *
+     * @return Number of misses
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Acquire number of thumbnails evicted from memory
+     *
+     * @return Number of evictions
+     */
+    public long getMemoryEvictionCount() {
+        return mMemoryEvictionCount.get();
+    }
+
+    /**
+     * Acquire number of thumbnails evicted from disk
+     *
+     * @return Number of evictions
+     */
+    public long getDiskEvictionCount() {
+        return mDiskEvictionCount.get();
+    }
+
+    private void loadDiskEntries() {
+        mDiskDirectory.mkdirs();
+        File[] files = mDiskDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        synchronized (mDiskEntries) {
+            for (File file : files) {
+                if (file.getName().endsWith(FILE_SUFFIX)) {
+                    mDiskEntries.put(file.getName(), file.length());
+                    mDiskBytes += file.length();
+                }
+            }
+            trimDisk();
+        }
+    }
+
+    private byte[] readDisk(String fileId) {
+        if (mDiskDirectory == null) {
+            return null;
+        }
+        String name = toFileName(fileId);
+        synchronized (mDiskEntries) {
+            // also moves the entry to the most recently used position
+            if (mDiskEntries.get(name) == null) {
+                return null;
+            }
+        }
+
+        File file = new File(mDiskDirectory, name);
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            byte[] encoded = new byte[(int) file.length()];
+            int offset = 0;
+            int length;
+            while (offset < encoded.length
+                    && (length = fis.read(encoded, offset, encoded.length - offset)) >= 0) {
+                offset += length;
+            }
+            return offset == encoded.length ? encoded : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void writeDisk(String fileId, byte[] encoded) {
+        if (mDiskDirectory == null) {
+            return;
+        }
+        String name = toFileName(fileId);
+        File tempFile = new File(mDiskDirectory, name + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile);
+            fos.write(encoded);
+            fos.close();
+            fos = null;
+            synchronized (mDiskEntries) {
+                if (!tempFile.renameTo(new File(mDiskDirectory, name))) {
+                    throw new IOException("Failed to store thumbnail of " + fileId);
+                }
+                Long oldSize = mDiskEntries.put(name, (long) encoded.length);
+                mDiskBytes += encoded.length - (oldSize != null ? oldSize : 0);
+                trimDisk();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete least recently used files until the disk cache fits in its size (call while holding
+     * the lock of mDiskEntries)
+     */
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> iterator = mDiskEntries.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            iterator.remove();
+            mDiskBytes -= entry.getValue();
+            new File(mDiskDirectory, entry.getKey()).delete();
+            mDiskEvictionCount.incrementAndGet();
+        }
+    }
+
+    private static String toFileName(String fileId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(fileId.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            sb.append(FILE_SUFFIX);
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.network;
+
+import android.graphics.Bitmap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Prioritized thumbnail fetch queue<p>
+ * A small number of worker threads fetch thumbnails through {@link HttpConnector#getThumb(String)}
+ * so that the embedded HTTP server of the device is not overloaded. Requests for the same file are
+ * merged, requests with a higher priority are fetched first, and among requests with the same
+ * priority the most recent one is fetched first so that the items that just became visible appear
+ * first while scrolling. Callbacks are called on a worker thread.
+ */
+public class ThumbnailFetchScheduler {
+    public final static int DEFAULT_WORKER_COUNT = 2;
+
+    private final HttpConnector mConnector;
+    private final Thread[] mWorkers;
+    private final HashMap<String, Request> mRequests = new HashMap<>();
+    /** Fetched requests whose callbacks are being called */
+    private final HashMap<String, Request> mDeliveringRequests = new HashMap<>();
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<>();
+    private long mSequence = 0;
+    private boolean mShutdown = false;
+
+    /**
+     * Constructor
+     *
+     * @param connector Connector used to fetch thumbnails
+     * @param workerCount Number of thumbnails fetched at the same time
+     */
+    public ThumbnailFetchScheduler(HttpConnector connector, int workerCount) {
+        mConnector = connector;
+        mWorkers = new Thread[workerCount];
+        for (int index = 0; index < workerCount; index++) {
+            mWorkers[index] = new Thread(this::runWorker, "ThumbnailFetch-" + index);
+            mWorkers[index].setDaemon(true);
+            mWorkers[index].start();
+        }
+    }
+
+    /**
+     * Request thumbnail<p>
+     * If the thumbnail of the same file is already requested, the callback is added to that request
+     * and the higher of the two priorities is used.
+     *
+     * @param fileId File ID
+     * @param priority Priority (larger value is fetched first)
+     * @param callback Callback that receives the thumbnail
+     */
+    public void request(String fileId, int priority, Callback callback) {
+        synchronized (mRequests) {
+            if (mShutdown) {
+                return;
+            }
+            Request request = mRequests.get(fileId);
+            if (request == null) {
+                request = new Request(fileId);
+                mRequests.put(fileId, request);
+            }
+            request.mCallbacks.add(callback);
+            if (!request.mInFlight) {
+                mQueue.remove(request);
+                request.mPriority = request.mQueued ? Math.max(request.mPriority, priority)
+                        : priority;
+                request.mSequence = mSequence++;
+                request.mQueued = true;
+                mQueue.add(request);
+                mRequests.notify();
+            }
+        }
+    }
+
+    /**
+     * Change priority of a request that has not been started yet
+     *
+     * @param fileId File ID
+     * @param priority Priority (larger value is fetched first)
+     */
+    public void setPriority(String fileId, int priority) {
+        synchronized (mRequests) {
+            Request request = mRequests.get(fileId);
+            if (request != null && request.mQueued) {
+                mQueue.remove(request);
+                request.mPriority = priority;
+                mQueue.add(request);
+            }
+        }
+    }
+
+    /**
+     * Cancel request of a callback<p>
+     * The fetch itself is canceled when no callback is left and it has not been started yet.
+     *
+     * @param fileId File ID
+     * @param callback Callback passed to {@link ThumbnailFetchScheduler#request}
+     */
+    public void cancel(String fileId, Callback callback) {
+        synchronized (mRequests) {
+            Request request = mRequests.get(fileId);
+            Request deliveringRequest = mDeliveringRequests.get(fileId);
+            if (deliveringRequest != null) {
+                deliveringRequest.mCallbacks.remove(callback);
+            }
+            if (request == null) {
+                return;
+            }
+            request.mCallbacks.remove(callback);
+            if (request.mCallbacks.isEmpty() && request.mQueued) {
+                mQueue.remove(request);
+                mRequests.remove(fileId);
+            }
+        }
+    }
+
+    /**
+     * Cancel all requests that have not been started yet
+     */
+    public void cancelAll() {
+        synchronized (mRequests) {
+            for (Request request : mQueue) {
+                mRequests.remove(request.mFileId);
+            }
+            mQueue.clear();
+        }
+    }
+
+    /**
+     * Acquire number of requests waiting to be fetched
+     *
+     * @return Number of requests
+     */
+    public int getPendingCount() {
+        synchronized (mRequests) {
+            return mQueue.size();
+        }
+    }
+
+    /**
+     * Cancel all requests and stop the worker threads<p>
+     * Thumbnails that are being fetched are not delivered.
+     */
+    public void shutdown() {
+        synchronized (mRequests) {
+            mShutdown = true;
+            mQueue.clear();
+            mRequests.clear();
+            mDeliveringRequests.clear();
+            mRequests.notifyAll();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            Request request;
+            synchronized (mRequests) {
+                while (!mShutdown && mQueue.isEmpty()) {
+                    try {
+                        mRequests.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mShutdown) {
+                    return;
+                }
+                request = mQueue.poll();
+                request.mQueued = false;
+                request.mInFlight = true;
+            }
+
+            Bitmap thumbnail = mConnector.getThumb(request.mFileId);
+
+            ArrayList<Callback> callbacks;
+            synchronized (mRequests) {
+                if (mShutdown) {
+                    return;
+                }
+                mRequests.remove(request.mFileId);
+                mDeliveringRequests.put(request.mFileId, request);
+                callbacks = new ArrayList<>(request.mCallbacks);
+            }
+            for (Callback callback : callbacks) {
+                synchronized (mRequests) {
+                    // canceled or shut down by an earlier callback
+                    if (mShutdown || !request.mCallbacks.contains(callback)) {
+                        continue;
+                    }
+                }
+                try {
+                    callback.onThumbnail(request.mFileId, thumbnail);
+                } catch (RuntimeException e) {
+                    // keep serving the following requests
+                    e.printStackTrace();
+                }
+            }
+            synchronized (mRequests) {
+                if (mDeliveringRequests.get(request.mFileId) == request) {
+                    mDeliveringRequests.remove(request.mFileId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Thumbnail request for one file
+     */
+    private static class Request implements Comparable<Request> {
+        private final String mFileId;
+        private final ArrayList<Callback> mCallbacks = new ArrayList<>();
+        private int mPriority;
+        private long mSequence;
+        private boolean mQueued = false;
+        private boolean mInFlight = false;
+
+        private Request(String fileId) {
+            mFileId = fileId;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            // newer request first
+            return Long.compare(other.mSequence, mSequence);
+        }
+    }
+
+    /**
+     * Callback of thumbnail fetch
+     */
+    public interface Callback {
+        /**
+         * Notifies you of the fetched thumbnail
+         * @param fileId File ID
+         * @param thumbnail Thumbnail (null if acquisition failed)
+         */
+        void onThumbnail(String fileId, Bitmap thumbnail);
+    }
+}
@@ -16,62 +16,41 @@
 
 package com.theta360.pluginapplication.network;
 
-import android.util.Xml;
 import java.io.IOException;
-import java.io.StringReader;
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
+import java.io.InputStream;
 
 /**
- * XMP data class
+ * XMP data class<p>
+ * Only the XMP segment near the beginning of the JPEG file is read.
  */
 public class XMP {
-    private final static String XMP_START_ELEMENT = "<x:xmpmeta";
-    private final static String XMP_END_ELEMENT = "</x:xmpmeta>";
-    private final static String XMP_TAG_NAME_PITCH = "PosePitchDegrees";
-    private final static String XMP_TAG_NAME_ROLL = "PoseRollDegrees";
-
     private Double mPosePitchDegrees;
     private Double mPoseRollDegrees;
+    private Double mPoseHeadingDegrees;
 
     /**
      * Constructor
      * @param original Raw data of image
      */
     public XMP(byte[] original) {
-        int startXmpIndex = indexOf(original, XMP_START_ELEMENT.getBytes(), 0);
-        int endXmpIndex = indexOf(original, XMP_END_ELEMENT.getBytes(), startXmpIndex);
-        String xmpData = new String(original, startXmpIndex, endXmpIndex - startXmpIndex + XMP_END_ELEMENT.length());
+        JpegMetadataParser parser = new JpegMetadataParser();
+        parser.feed(original, 0, original.length);
+        setPose(parser);
+    }
 
-        XmlPullParser parser = Xml.newPullParser();
+    /**
+     * Constructor<p>
+     * The stream is read only up to the XMP segment.
+     * @param is Stream positioned at the beginning of image
+     */
+    public XMP(InputStream is) {
+        JpegMetadataParser parser = new JpegMetadataParser();
         try {
-            parser.setInput(new StringReader(xmpData));
-            int eventType = parser.getEventType();
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                switch (eventType) {
-                    case XmlPullParser.START_TAG:
-                        String tagName = parser.getName();
-                        if (tagName.equals(XMP_TAG_NAME_PITCH)) {
-                            String pitchInXml = parser.nextText();
-                            mPosePitchDegrees = Double.valueOf(pitchInXml);
-                        } else if (tagName.equals(XMP_TAG_NAME_ROLL)) {
-                            String rollInXml = parser.nextText();
-                            mPoseRollDegrees = Double.valueOf(rollInXml);
-                        }
-                        break;
-                    case XmlPullParser.START_DOCUMENT:
-                    case XmlPullParser.END_TAG:
-                    case XmlPullParser.TEXT:
-                        // do nothing
-                        break;
-                }
-                eventType = parser.next();
-            }
-        } catch (XmlPullParserException e) {
-            e.printStackTrace();
+            parser.parse(is);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        setPose(parser);
     }
 
     /**
@@ -91,26 +70,20 @@ public class XMP {
     }
 
     /**
-     * Search position of specific data pattern
-     * @param original Search target data
-     * @param sub Searched data
-     * @param startIndex Search start position
-     * @return The position where the searched data starts. "-1" is returned if there are no hits.
+     * Acquire heading angle set for XMP
+     * @return Heading angle
      */
-    private int indexOf(byte[] original, byte[] sub, int startIndex)
-    {
-        int subIndex = 0;
-        for(int originalIndex = startIndex; originalIndex < original.length; originalIndex++) {
-            if(original[originalIndex] == sub[subIndex]) {
-                if(subIndex == sub.length - 1) {
-                    return originalIndex - subIndex;
-                }
-                subIndex++;
-            } else {
-                subIndex = 0;
-            }
-        }
+    public Double getPoseHeadingDegrees() {
+        return mPoseHeadingDegrees;
+    }
+
+    private void setPose(JpegMetadataParser parser) {
+        mPosePitchDegrees = toDouble(parser.getPosePitchDegrees());
+        mPoseRollDegrees = toDouble(parser.getPoseRollDegrees());
+        mPoseHeadingDegrees = toDouble(parser.getPoseHeadingDegrees());
+    }
 
-        return -1;
+    private static Double toDouble(double value) {
+        return Double.isNaN(value) ? null : value;
     }
 }
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded ring of frames between a producer thread and a consumer thread<p>
+ * The ring holds its own reference to each frame. When it is full the oldest frame is dropped,
+ * so the producer never waits for the consumer.
+ */
+class FrameRing {
+    private final PreviewFrame[] mFrames;
+    private int mHead = 0;
+    private int mCount = 0;
+    private boolean mOpen = true;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param capacity Number of frames held
+     */
+    FrameRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mFrames = new PreviewFrame[capacity];
+    }
+
+    /**
+     * Put frame, dropping the oldest frame if the ring is full
+     *
+     * @param frame Frame (a reference is added by the ring)
+     * @return true:Put, false:Ring is closed
+     */
+    synchronized boolean offer(PreviewFrame frame) {
+        if (!mOpen) {
+            return false;
+        }
+        if (mCount == mFrames.length) {
+            removeOldest().release();
+            mDroppedCount.incrementAndGet();
+        }
+        mFrames[(mHead + mCount) % mFrames.length] = frame.retain();
+        mCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait for a frame and take the oldest one
+     *
+     * @return Frame whose reference passes to the caller (null is returned when closed)
+     */
+    synchronized PreviewFrame take() {
+        if (!waitFrame()) {
+            return null;
+        }
+        return removeOldest();
+    }
+
+    /**
+     * Wait for a frame and take the newest one, dropping the older ones
+     *
+     * @return Frame whose reference passes to the caller (null is returned when closed)
+     */
+    synchronized PreviewFrame takeNewest() {
+        if (!waitFrame()) {
+            return null;
+        }
+        while (mCount > 1) {
+            removeOldest().release();
+            mDroppedCount.incrementAndGet();
+        }
+        return removeOldest();
+    }
+
+    /**
+     * Accept frames again after {@link FrameRing#close()}
+     */
+    synchronized void open() {
+        mOpen = true;
+    }
+
+    /**
+     * Release all frames and wake up the consumer
+     */
+    synchronized void close() {
+        mOpen = false;
+        while (mCount > 0) {
+            removeOldest().release();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Acquire number of frames dropped by the ring
+     *
+     * @return Number of frames
+     */
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    private boolean waitFrame() {
+        while (mOpen && mCount == 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return mOpen;
+    }
+
+    private PreviewFrame removeOldest() {
+        PreviewFrame frame = mFrames[mHead];
+        mFrames[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mCount--;
+        return frame;
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of live preview frames<p>
+ * Splits the multipart stream returned by
+ * {@link com.theta360.pluginapplication.network.HttpConnector#getLivePreview()} into JPEG frames.
+ * A part is read by its Content-Length header when present, and otherwise by walking the JPEG
+ * markers from SOI to EOI, so a plain concatenation of JPEG files can also be read. Frames are
+ * filled directly into pooled buffers and part headers are parsed in place, so nothing is
+ * allocated per frame once the pool has enough buffers.
+ */
+public class LivePreviewSource implements Closeable {
+    private final static int READ_BUFFER_SIZE = 64 * 1024;
+    private final static int MAX_HEADER_LINE_LENGTH = 1024;
+    /** Upper limit of a frame, to detect a broken stream */
+    private final static int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private final static long RATE_PERIOD_NS = 1000000000L;
+    private final static int END_OF_STREAM = -2;
+
+    private final static byte[] CONTENT_LENGTH = {
+            'c', 'o', 'n', 't', 'e', 'n', 't', '-', 'l', 'e', 'n', 'g', 't', 'h'
+    };
+
+    private final InputStream mInputStream;
+    private final PreviewFramePool mPool;
+    private final byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+    private final byte[] mLine = new byte[MAX_HEADER_LINE_LENGTH];
+    private int mPosition = 0;
+    private int mLimit = 0;
+    private long mSequence = 0;
+
+    private volatile long mFrameCount = 0;
+    private volatile long mByteCount = 0;
+    private long mRateStartNanos = 0;
+    private long mRateStartFrameCount = 0;
+    private long mRateStartByteCount = 0;
+    private volatile double mFrameRate = 0;
+    private volatile double mByteRate = 0;
+
+    /**
+     * Constructor (uses a pool of its own)
+     *
+     * @param is Live preview stream
+     */
+    public LivePreviewSource(InputStream is) {
+        this(is, new PreviewFramePool());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param is Live preview stream
+     * @param pool Pool of frame buffers
+     */
+    public LivePreviewSource(InputStream is, PreviewFramePool pool) {
+        mInputStream = is;
+        mPool = pool;
+    }
+
+    /**
+     * Read next frame (blocks until the frame is received)
+     *
+     * @return Frame with one reference owned by the caller (null is returned at the end of the
+     * stream)
+     * @throws IOException IO error
+     */
+    public PreviewFrame nextFrame() throws IOException {
+        // skip line breaks between parts
+        int value;
+        while ((value = peek()) == '\r' || value == '\n') {
+            mPosition++;
+        }
+        if (value < 0) {
+            return null;
+        }
+
+        int contentLength = -1;
+        if (value != 0xFF) {
+            contentLength = readPartHeaders();
+            if (contentLength == END_OF_STREAM) {
+                return null;
+            }
+        }
+
+        PreviewFrame frame = mPool.acquire();
+        try {
+            boolean completed = contentLength >= 0 ? readBody(frame, contentLength)
+                    : readJpeg(frame);
+            if (!completed) {
+                frame.release();
+                return null;
+            }
+        } catch (IOException e) {
+            frame.release();
+            throw e;
+        }
+
+        long now = System.nanoTime();
+        frame.setSequence(mSequence++);
+        frame.setTimestampNanos(now);
+        updateRates(frame.getLength(), now);
+
+        return frame;
+    }
+
+    /**
+     * Acquire number of frames received per second, measured over the last second
+     *
+     * @return Frame rate (unit: frames/sec)
+     */
+    public double getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * Acquire number of JPEG bytes received per second, measured over the last second
+     *
+     * @return Data rate (unit: bytes/sec)
+     */
+    public double getByteRate() {
+        return mByteRate;
+    }
+
+    /**
+     * Acquire number of frames received
+     *
+     * @return Number of frames
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Acquire number of JPEG bytes received
+     *
+     * @return Number of bytes
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Acquire pool of frame buffers
+     *
+     * @return Pool
+     */
+    public PreviewFramePool getPool() {
+        return mPool;
+    }
+
+    /**
+     * Close the stream
+     */
+    @Override
+    public void close() throws IOException {
+        mInputStream.close();
+    }
+
+    /**
+     * Read boundary and headers of a part
+     *
+     * @return Content length ("-1" if not specified, END_OF_STREAM at the end of the stream)
+     */
+    private int readPartHeaders() throws IOException {
+        int contentLength = -1;
+        boolean headerRead = false;
+        while (true) {
+            int length = readLine();
+            if (length < 0) {
+                return END_OF_STREAM;
+            }
+            if (length == 0) {
+                if (headerRead) {
+                    return contentLength;
+                }
+                continue;
+            }
+            headerRead = true;
+            if (startsWithIgnoreCase(mLine, length, CONTENT_LENGTH)) {
+                contentLength = parseHeaderValue(mLine, CONTENT_LENGTH.length, length);
+            }
+        }
+    }
+
+    /**
+     * Read a line into mLine without the line break (characters beyond the line buffer are
+     * dropped)
+     *
+     * @return Length of the line ("-1" at the end of the stream)
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (mPosition >= mLimit && !fill()) {
+                return length > 0 ? length : -1;
+            }
+            byte value = mBuffer[mPosition++];
+            if (value == '\n') {
+                break;
+            }
+            if (length < mLine.length) {
+                mLine[length++] = value;
+            }
+        }
+        if (length > 0 && mLine[length - 1] == '\r') {
+            length--;
+        }
+        return length;
+    }
+
+    /**
+     * Read body of the specified length
+     *
+     * @return true:Completed, false:Stream ended
+     */
+    private boolean readBody(PreviewFrame frame, int contentLength) throws IOException {
+        if (contentLength > MAX_FRAME_SIZE) {
+            throw new IOException("Frame too large: " + contentLength);
+        }
+        frame.ensureCapacity(contentLength);
+
+        // data already buffered, then directly into the frame
+        int buffered = Math.min(mLimit - mPosition, contentLength);
+        frame.append(mBuffer, mPosition, buffered);
+        mPosition += buffered;
+        byte[] data = frame.getData();
+        int offset = buffered;
+        while (offset < contentLength) {
+            int length = mInputStream.read(data, offset, contentLength - offset);
+            if (length < 0) {
+                return false;
+            }
+            offset += length;
+        }
+        frame.setLength(contentLength);
+        return true;
+    }
+
+    /**
+     * Read JPEG from SOI to EOI<p>
+     * Marker segments are copied by their length so that bytes inside them (for example an
+     * embedded thumbnail) are never mistaken for EOI, and entropy-coded data is scanned for
+     * markers.
+     *
+     * @return true:Completed, false:Stream ended
+     */
+    private boolean readJpeg(PreviewFrame frame) throws IOException {
+        // find SOI
+        int previous = 0;
+        while (true) {
+            int value = read();
+            if (value < 0) {
+                return false;
+            }
+            if (previous == 0xFF && value == 0xD8) {
+                break;
+            }
+            previous = value;
+        }
+        frame.append(0xFF);
+        frame.append(0xD8);
+
+        while (true) {
+            if (frame.getLength() > MAX_FRAME_SIZE) {
+                throw new IOException("Frame too large");
+            }
+            if (mPosition >= mLimit && !fill()) {
+                return false;
+            }
+
+            // copy entropy-coded data up to the next 0xFF at once
+            int start = mPosition;
+            while (mPosition < mLimit && mBuffer[mPosition] != (byte) 0xFF) {
+                mPosition++;
+            }
+            frame.append(mBuffer, start, mPosition - start);
+            if (mPosition >= mLimit) {
+                continue;
+            }
+            mPosition++;
+
+            int marker = read();
+            if (marker < 0) {
+                return false;
+            }
+            if (marker == 0xFF) {
+                // fill byte, the second 0xFF starts the marker
+                frame.append(0xFF);
+                mPosition--;
+                continue;
+            }
+            frame.append(0xFF);
+            frame.append(marker);
+            if (marker == 0xD9) {
+                return true;
+            }
+            if (marker == 0x00 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // stuffed byte, TEM or RST without segment
+                continue;
+            }
+
+            // marker segment
+            int high = read();
+            int low = read();
+            if (low < 0) {
+                return false;
+            }
+            frame.append(high);
+            frame.append(low);
+            if (!copy(frame, ((high << 8) | low) - 2)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Copy bytes from the stream to the frame
+     *
+     * @return true:Copied, false:Stream ended
+     */
+    private boolean copy(PreviewFrame frame, int count) throws IOException {
+        while (count > 0) {
+            if (mPosition >= mLimit && !fill()) {
+                return false;
+            }
+            int length = Math.min(count, mLimit - mPosition);
+            frame.append(mBuffer, mPosition, length);
+            mPosition += length;
+            count -= length;
+        }
+        return true;
+    }
+
+    private int peek() throws IOException {
+        if (mPosition >= mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition] & 0xFF;
+    }
+
+    private int read() throws IOException {
+        if (mPosition >= mLimit && !fill()) {
+            return -1;
+        }
+        return mBuffer[mPosition++] & 0xFF;
+    }
+
+    /**
+     * Read more data into the empty read buffer
+     *
+     * @return true:Data read, false:Stream ended
+     */
+    private boolean fill() throws IOException {
+        int length = mInputStream.read(mBuffer, 0, mBuffer.length);
+        if (length <= 0) {
+            return false;
+        }
+        mPosition = 0;
+        mLimit = length;
+        return true;
+    }
+
+    private void updateRates(int length, long now) {
+        mFrameCount++;
+        mByteCount += length;
+        if (mRateStartNanos == 0) {
+            mRateStartNanos = now;
+            return;
+        }
+        long elapsed = now - mRateStartNanos;
+        if (elapsed >= RATE_PERIOD_NS) {
+            mFrameRate = (mFrameCount - mRateStartFrameCount) * 1e9d / elapsed;
+            mByteRate = (mByteCount - mRateStartByteCount) * 1e9d / elapsed;
+            mRateStartNanos = now;
+            mRateStartFrameCount = mFrameCount;
+            mRateStartByteCount = mByteCount;
+        }
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] line, int length, byte[] lowerPrefix) {
+        if (length < lowerPrefix.length) {
+            return false;
+        }
+        for (int index = 0; index < lowerPrefix.length; index++) {
+            int value = line[index];
+            if (value >= 'A' && value <= 'Z') {
+                value += 'a' - 'A';
+            }
+            if (value != lowerPrefix[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the number after ':' of a header line
+     *
+     * @return Value ("-1" is returned if the value is not a number)
+     */
+    private static int parseHeaderValue(byte[] line, int position, int length) {
+        while (position < length && (line[position] == ' ' || line[position] == '\t')) {
+            position++;
+        }
+        if (position >= length || line[position] != ':') {
+            return -1;
+        }
+        position++;
+        while (position < length && (line[position] == ' ' || line[position] == '\t')) {
+            position++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (position < length && line[position] >= '0' && line[position] <= '9'
+                && value <= Integer.MAX_VALUE) {
+            value = value * 10 + (line[position++] - '0');
+            digits++;
+        }
+        return digits > 0 && value <= Integer.MAX_VALUE ? (int) value : -1;
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import android.graphics.Bitmap;
+import com.theta360.pluginapplication.network.HttpConnector;
+import com.theta360.pluginapplication.network.HttpConnector.ShootResult;
+import com.theta360.pluginapplication.network.HttpEventListener;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Motion detector that takes a photo when motion is seen in the live preview<p>
+ * Each decoded frame is reduced to a grid of luma cells and compared with a background model,
+ * which is a running average of the previous frames. When enough cells differ from the background
+ * in consecutive frames, {@link HttpConnector#takePicture(HttpEventListener)} is called on a
+ * capture thread shared by all detectors, and no other photo is taken until the device reports
+ * the end of shooting. All arrays are allocated once for the frame size, so nothing is allocated per
+ * frame.
+ * <p>
+ * Use the detector as the listener of a {@link PreviewPipeline} that decodes reduced frames, for
+ * example with a sample size of 8 and a reused bitmap. A recording made by
+ * {@link PreviewRecorder} can be passed to {@link PreviewPipeline#replay(LivePreviewSource)} to
+ * measure the detector on a fixed frame sequence.
+ */
+public class MotionDetector implements PreviewPipeline.Listener {
+    public final static int GRID_WIDTH = 64;
+    public final static int GRID_HEIGHT = 32;
+    public final static int DEFAULT_THRESHOLD = 20;
+    public final static double DEFAULT_MOTION_RATIO = 0.02d;
+    public final static int DEFAULT_REQUIRED_FRAMES = 2;
+    public final static long DEFAULT_COOLDOWN_MS = 5000;
+    /** Frames used to build the background before motion can be detected */
+    private final static int WARMUP_FRAMES = 10;
+    /** Background learns 1/16 of the difference per frame */
+    private final static int LEARNING_SHIFT = 4;
+    /** Fixed point scale of the background */
+    private final static int BACKGROUND_SHIFT = 8;
+    private final static int CELL_COUNT = GRID_WIDTH * GRID_HEIGHT;
+    /** Weight of the latest value in averaged statistics */
+    private final static double SMOOTHING = 0.1d;
+    private final static long CAPTURE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private final static ThreadPoolExecutor sCaptureExecutor = createCaptureExecutor();
+
+    private final HttpConnector mConnector;
+    private final HttpEventListener mEventListener;
+    private int mThreshold = DEFAULT_THRESHOLD;
+    private double mMotionRatio = DEFAULT_MOTION_RATIO;
+    private int mRequiredFrames = DEFAULT_REQUIRED_FRAMES;
+    private long mCooldownNanos = DEFAULT_COOLDOWN_MS * 1000000L;
+
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private int[] mPixels = new int[0];
+    private int[] mColumnCells = new int[0];
+    private final int[] mLumaSums = new int[CELL_COUNT];
+    private final int[] mPixelCounts = new int[CELL_COUNT];
+    private final int[] mBackground = new int[CELL_COUNT];
+    private long mFrameCount = 0;
+    private int mMotionFrames = 0;
+    private long mLastTriggerNanos = 0;
+    private final AtomicBoolean mCapturing = new AtomicBoolean(false);
+
+    private volatile double mLastMotionRatio = 0;
+    private volatile double mAverageAnalysisMillis = 0;
+    private volatile long mTriggerCount = 0;
+    private volatile long mCapturedCount = 0;
+    private volatile double mShutterLatencyMillis = 0;
+    private volatile double mAverageShutterLatencyMillis = 0;
+
+    /**
+     * Constructor
+     *
+     * @param connector Connector used to take photos (null to detect motion without shooting)
+     * @param eventListener Post-shooting event listener passed to
+     * {@link HttpConnector#takePicture(HttpEventListener)}
+     */
+    public MotionDetector(HttpConnector connector, HttpEventListener eventListener) {
+        mConnector = connector;
+        mEventListener = eventListener;
+    }
+
+    /**
+     * Set difference of luma regarded as a change
+     *
+     * @param threshold Difference between 0 and 255
+     */
+    public synchronized void setThreshold(int threshold) {
+        if (threshold < 0 || threshold > 255) {
+            throw new IllegalArgumentException("threshold must be between 0 and 255");
+        }
+        mThreshold = threshold;
+    }
+
+    /**
+     * Set ratio of changed cells regarded as motion
+     *
+     * @param motionRatio Ratio between 0 and 1
+     */
+    public synchronized void setMotionRatio(double motionRatio) {
+        if (motionRatio <= 0 || motionRatio > 1) {
+            throw new IllegalArgumentException("motionRatio must be between 0 and 1");
+        }
+        mMotionRatio = motionRatio;
+    }
+
+    /**
+     * Set number of consecutive frames with motion needed to take a photo
+     *
+     * @param requiredFrames Number of frames
+     */
+    public synchronized void setRequiredFrames(int requiredFrames) {
+        if (requiredFrames <= 0) {
+            throw new IllegalArgumentException("requiredFrames must be positive");
+        }
+        mRequiredFrames = requiredFrames;
+    }
+
+    /**
+     * Set time during which no photo is taken after the previous one
+     *
+     * @param cooldownMillis Time (unit: ms)
+     */
+    public synchronized void setCooldownMillis(long cooldownMillis) {
+        if (cooldownMillis < 0) {
+            throw new IllegalArgumentException("cooldownMillis must not be negative");
+        }
+        mCooldownNanos = cooldownMillis * 1000000L;
+    }
+
+    /**
+     * Discard the background model (for example after the camera was moved)
+     */
+    public synchronized void reset() {
+        mFrameCount = 0;
+        mMotionFrames = 0;
+    }
+
+    /**
+     * Analyze decoded frame and take a photo if motion is detected
+     *
+     * @param bitmap Decoded bitmap
+     * @param frame Source frame
+     */
+    @Override
+    public void onFrameDecoded(Bitmap bitmap, PreviewFrame frame) {
+        if (analyze(bitmap) && mConnector != null) {
+            trigger(frame.getTimestampNanos());
+        }
+    }
+
+    /**
+     * Compare bitmap with the background model and update the model
+     *
+     * @param bitmap Decoded bitmap
+     * @return true:Motion detected outside the cooldown, false:Otherwise
+     */
+    public synchronized boolean analyze(Bitmap bitmap) {
+        long start = System.nanoTime();
+        boolean initializing = computeLuma(bitmap);
+
+        int changed = 0;
+        for (int cell = 0; cell < CELL_COUNT; cell++) {
+            int count = mPixelCounts[cell];
+            int luma = count > 0 ? mLumaSums[cell] / count : 0;
+            if (initializing) {
+                mBackground[cell] = luma << BACKGROUND_SHIFT;
+                continue;
+            }
+            int difference = luma - (mBackground[cell] >> BACKGROUND_SHIFT);
+            if (difference > mThreshold || -difference > mThreshold) {
+                changed++;
+            }
+            mBackground[cell] += ((luma << BACKGROUND_SHIFT) - mBackground[cell]) >> LEARNING_SHIFT;
+        }
+
+        double motionRatio = (double) changed / CELL_COUNT;
+        mLastMotionRatio = motionRatio;
+        mFrameCount++;
+        boolean detected = false;
+        if (mFrameCount > WARMUP_FRAMES && motionRatio >= mMotionRatio) {
+            mMotionFrames++;
+            if (mMotionFrames >= mRequiredFrames
+                    && (mTriggerCount == 0 || start - mLastTriggerNanos >= mCooldownNanos)) {
+                mMotionFrames = 0;
+                mLastTriggerNanos = start;
+                mTriggerCount++;
+                detected = true;
+            }
+        } else {
+            mMotionFrames = 0;
+        }
+
+        mAverageAnalysisMillis = average(mAverageAnalysisMillis,
+                (System.nanoTime() - start) / 1e6d, mFrameCount - 1);
+        return detected;
+    }
+
+    /**
+     * Acquire ratio of cells that differed from the background in the latest frame
+     *
+     * @return Ratio between 0 and 1
+     */
+    public double getLastMotionRatio() {
+        return mLastMotionRatio;
+    }
+
+    /**
+     * Acquire averaged time taken to analyze a frame
+     *
+     * @return Analysis time (unit: ms)
+     */
+    public double getAverageAnalysisTimeMillis() {
+        return mAverageAnalysisMillis;
+    }
+
+    /**
+     * Acquire number of times motion was detected
+     *
+     * @return Number of times
+     */
+    public long getTriggerCount() {
+        return mTriggerCount;
+    }
+
+    /**
+     * Acquire number of photos taken
+     *
+     * @return Number of photos
+     */
+    public long getCapturedCount() {
+        return mCapturedCount;
+    }
+
+    /**
+     * Acquire latency of the latest photo, from the end of the reception of the frame showing the
+     * motion until the device reported the end of shooting
+     *
+     * @return Latency (unit: ms)
+     */
+    public double getShutterLatencyMillis() {
+        return mShutterLatencyMillis;
+    }
+
+    /**
+     * Acquire averaged latency (see {@link MotionDetector#getShutterLatencyMillis()})
+     *
+     * @return Latency (unit: ms)
+     */
+    public double getAverageShutterLatencyMillis() {
+        return mAverageShutterLatencyMillis;
+    }
+
+    /**
+     * Sum luma of the bitmap for each cell
+     *
+     * @return true:Background is initialized with this frame, false:Otherwise
+     */
+    private boolean computeLuma(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        boolean initializing = mFrameCount == 0;
+        if (width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mPixels = new int[width * height];
+            mColumnCells = new int[width];
+            for (int x = 0; x < width; x++) {
+                mColumnCells[x] = x * GRID_WIDTH / width;
+            }
+            mFrameCount = 0;
+            mMotionFrames = 0;
+            initializing = true;
+        }
+
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+        for (int cell = 0; cell < CELL_COUNT; cell++) {
+            mLumaSums[cell] = 0;
+            mPixelCounts[cell] = 0;
+        }
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            int rowCell = y * GRID_HEIGHT / height * GRID_WIDTH;
+            for (int x = 0; x < width; x++) {
+                int pixel = mPixels[index++];
+                // BT.601 luma in integer arithmetic
+                int luma = (77 * ((pixel >> 16) & 0xFF) + 150 * ((pixel >> 8) & 0xFF)
+                        + 29 * (pixel & 0xFF)) >> 8;
+                int cell = rowCell + mColumnCells[x];
+                mLumaSums[cell] += luma;
+                mPixelCounts[cell]++;
+            }
+        }
+        return initializing;
+    }
+
+    private void trigger(long frameTimestampNanos) {
+        if (!mCapturing.compareAndSet(false, true)) {
+            return;
+        }
+        sCaptureExecutor.execute(() -> {
+            boolean accepted = false;
+            try {
+                accepted = mConnector.takePicture(new CaptureListener(frameTimestampNanos))
+                        == ShootResult.SUCCESS;
+            } finally {
+                if (!accepted) {
+                    mCapturing.set(false);
+                }
+            }
+        });
+    }
+
+    private synchronized void captured(long frameTimestampNanos) {
+        double latency = (System.nanoTime() - frameTimestampNanos) / 1e6d;
+        mShutterLatencyMillis = latency;
+        mAverageShutterLatencyMillis = average(mAverageShutterLatencyMillis, latency,
+                mCapturedCount);
+        mCapturedCount++;
+    }
+
+    private static double average(double average, double value, long count) {
+        return count == 0 ? value : average + (value - average) * SMOOTHING;
+    }
+
+    private static ThreadPoolExecutor createCaptureExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                CAPTURE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "MotionCapture");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Listener of a shot, which ends the capture before passing the events on
+     */
+    private class CaptureListener implements HttpEventListener {
+        private final long mFrameTimestampNanos;
+
+        private CaptureListener(long frameTimestampNanos) {
+            mFrameTimestampNanos = frameTimestampNanos;
+        }
+
+        @Override
+        public void onCheckStatus(boolean newStatus) {
+            if (mEventListener != null) {
+                mEventListener.onCheckStatus(newStatus);
+            }
+        }
+
+        @Override
+        public void onObjectChanged(String latestCapturedFileId) {
+            if (mEventListener != null) {
+                mEventListener.onObjectChanged(latestCapturedFileId);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+            captured(mFrameTimestampNanos);
+            mCapturing.set(false);
+            if (mEventListener != null) {
+                mEventListener.onCompleted();
+            }
+        }
+
+        @Override
+        public void onError(String errorMessage) {
+            mCapturing.set(false);
+            if (mEventListener != null) {
+                mEventListener.onError(errorMessage);
+            }
+        }
+    }
+}
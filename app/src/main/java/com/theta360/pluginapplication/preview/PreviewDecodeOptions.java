@@ -0,0 +1,104 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import android.graphics.Bitmap;
+
+/**
+ * Decoding options of a live preview consumer<p>
+ * Consumers that do not need every full-size frame (framing checks, motion triggers) can decode
+ * only every Nth frame, decode at a reduced resolution, and decode into one reused bitmap.
+ */
+public class PreviewDecodeOptions {
+    private int mFrameInterval = 1;
+    private int mSampleSize = 1;
+    private boolean mBitmapReused = false;
+    private Bitmap.Config mBitmapConfig = Bitmap.Config.ARGB_8888;
+
+    /**
+     * Acquire interval of decoded frames
+     * @return Interval (1 decodes every frame, N decodes one frame in N)
+     */
+    public int getFrameInterval() {
+        return mFrameInterval;
+    }
+
+    /**
+     * Set interval of decoded frames
+     * @param frameInterval Interval (1 decodes every frame, N decodes one frame in N)
+     */
+    public void setFrameInterval(int frameInterval) {
+        if (frameInterval <= 0) {
+            throw new IllegalArgumentException("frameInterval must be positive");
+        }
+        mFrameInterval = frameInterval;
+    }
+
+    /**
+     * Acquire reduction ratio of decoding
+     * @return Ratio ({@link android.graphics.BitmapFactory.Options#inSampleSize})
+     */
+    public int getSampleSize() {
+        return mSampleSize;
+    }
+
+    /**
+     * Set reduction ratio of decoding
+     * @param sampleSize Ratio ({@link android.graphics.BitmapFactory.Options#inSampleSize}, 2
+     * decodes at half width and half height)
+     */
+    public void setSampleSize(int sampleSize) {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("sampleSize must be positive");
+        }
+        mSampleSize = sampleSize;
+    }
+
+    /**
+     * Check whether one bitmap is reused for all frames
+     * @return true:Reused, false:New bitmap for each frame
+     */
+    public boolean isBitmapReused() {
+        return mBitmapReused;
+    }
+
+    /**
+     * Set whether one bitmap is reused for all frames<p>
+     * When reused, the bitmap passed to the listener is overwritten by the next frame, so it must
+     * not be used after the listener returns.
+     * @param bitmapReused true:Reused, false:New bitmap for each frame
+     */
+    public void setBitmapReused(boolean bitmapReused) {
+        mBitmapReused = bitmapReused;
+    }
+
+    /**
+     * Acquire pixel format of decoded bitmaps
+     * @return Pixel format
+     */
+    public Bitmap.Config getBitmapConfig() {
+        return mBitmapConfig;
+    }
+
+    /**
+     * Set pixel format of decoded bitmaps
+     * @param bitmapConfig Pixel format (RGB_565 halves the memory of ARGB_8888)
+     */
+    public void setBitmapConfig(Bitmap.Config bitmapConfig) {
+        mBitmapConfig = bitmapConfig;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JPEG frame of live preview<p>
+ * The frame is the first {@link PreviewFrame#getLength()} bytes of a pooled buffer. It is
+ * reference counted: every holder calls {@link PreviewFrame#retain()} before passing the frame to
+ * another thread and {@link PreviewFrame#release()} when it no longer reads the data. The buffer
+ * returns to its pool when the last reference is released, and must not be read after that.
+ */
+public class PreviewFrame {
+    private final PreviewFramePool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private byte[] mData;
+    private int mLength;
+    private long mSequence;
+    private long mTimestampNanos;
+
+    PreviewFrame(PreviewFramePool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    /**
+     * Acquire buffer that holds the JPEG data
+     *
+     * @return Buffer (valid from 0 to {@link PreviewFrame#getLength()})
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Acquire length of the JPEG data
+     *
+     * @return Length (unit: bytes)
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Acquire sequence number of the frame in its stream
+     *
+     * @return Sequence number (starts from 0)
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * Acquire time when the frame was received
+     *
+     * @return Time of {@link System#nanoTime()} (unit: ns)
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Add a reference
+     *
+     * @return This frame
+     */
+    public PreviewFrame retain() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame is already released");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Remove a reference (the buffer returns to the pool when no reference is left)
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame is released too many times");
+        }
+    }
+
+    /**
+     * Acquire number of references
+     *
+     * @return Number of references
+     */
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+    /**
+     * Prepare frame to be filled (called by the pool)
+     */
+    void reset() {
+        mLength = 0;
+        mSequence = 0;
+        mTimestampNanos = 0;
+        mRefCount.set(1);
+    }
+
+    /**
+     * Append data to the frame, growing the buffer if needed
+     */
+    void append(byte[] data, int offset, int length) {
+        ensureCapacity(mLength + length);
+        System.arraycopy(data, offset, mData, mLength, length);
+        mLength += length;
+    }
+
+    /**
+     * Append one byte to the frame, growing the buffer if needed
+     */
+    void append(int value) {
+        ensureCapacity(mLength + 1);
+        mData[mLength++] = (byte) value;
+    }
+
+    /**
+     * Grow the buffer (the grown buffer stays with the frame when it returns to the pool)
+     */
+    void ensureCapacity(int capacity) {
+        if (mData.length < capacity) {
+            mData = Arrays.copyOf(mData, Math.max(capacity, mData.length * 2));
+        }
+    }
+
+    void setLength(int length) {
+        mLength = length;
+    }
+
+    void setSequence(long sequence) {
+        mSequence = sequence;
+    }
+
+    void setTimestampNanos(long timestampNanos) {
+        mTimestampNanos = timestampNanos;
+    }
+}
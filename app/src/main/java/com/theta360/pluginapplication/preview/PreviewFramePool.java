@@ -0,0 +1,104 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of preview frame buffers<p>
+ * Released frames are kept and handed out again, so no buffer is allocated once the number of
+ * frames in use stops growing. Buffers grow to the largest frame they have held.
+ */
+public class PreviewFramePool {
+    public final static int DEFAULT_FRAME_CAPACITY = 256 * 1024;
+    public final static int DEFAULT_MAX_POOLED_FRAMES = 8;
+
+    private final int mFrameCapacity;
+    private final int mMaxPooledFrames;
+    private final ArrayDeque<PreviewFrame> mFrames = new ArrayDeque<>();
+    private final AtomicLong mAllocationCount = new AtomicLong();
+
+    /**
+     * Constructor (uses default buffer size and pool size)
+     */
+    public PreviewFramePool() {
+        this(DEFAULT_FRAME_CAPACITY, DEFAULT_MAX_POOLED_FRAMES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param frameCapacity Initial size of frame buffers (unit: bytes)
+     * @param maxPooledFrames Maximum number of released frames kept
+     */
+    public PreviewFramePool(int frameCapacity, int maxPooledFrames) {
+        mFrameCapacity = frameCapacity;
+        mMaxPooledFrames = maxPooledFrames;
+    }
+
+    /**
+     * Acquire empty frame with one reference
+     *
+     * @return Frame
+     */
+    public PreviewFrame acquire() {
+        PreviewFrame frame;
+        synchronized (mFrames) {
+            frame = mFrames.poll();
+        }
+        if (frame == null) {
+            frame = new PreviewFrame(this, mFrameCapacity);
+            mAllocationCount.incrementAndGet();
+        }
+        frame.reset();
+        return frame;
+    }
+
+    /**
+     * Return frame whose last reference was released
+     *
+     * @param frame Frame
+     */
+    void recycle(PreviewFrame frame) {
+        synchronized (mFrames) {
+            if (mFrames.size() < mMaxPooledFrames) {
+                mFrames.push(frame);
+            }
+        }
+    }
+
+    /**
+     * Acquire number of frames allocated by the pool
+     *
+     * @return Number of frames
+     */
+    public long getAllocationCount() {
+        return mAllocationCount.get();
+    }
+
+    /**
+     * Acquire number of frames waiting in the pool
+     *
+     * @return Number of frames
+     */
+    public int getPooledCount() {
+        synchronized (mFrames) {
+            return mFrames.size();
+        }
+    }
+}
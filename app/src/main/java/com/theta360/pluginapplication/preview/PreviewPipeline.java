@@ -0,0 +1,359 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live preview decode pipeline<p>
+ * A reader thread keeps reading frames from the source so that stale frames never pile up in the
+ * socket buffers, and puts them into a bounded ring. When the ring is full the oldest frame is
+ * dropped. The decode thread always decodes the newest frame and drops the older ones, so the
+ * latency stays bounded however slow decoding or the listener is. Frames are decoded as specified
+ * by {@link PreviewDecodeOptions}, and frames thinned out by its interval never enter the ring.
+ */
+public class PreviewPipeline {
+    public final static int DEFAULT_CAPACITY = 2;
+    /** Weight of the latest value in averaged statistics */
+    private final static double SMOOTHING = 0.1d;
+
+    private final LivePreviewSource mSource;
+    private final Listener mListener;
+    private final FrameRing mRing;
+    private volatile boolean mRunning = false;
+    private Thread mReaderThread = null;
+    private Thread mDecoderThread = null;
+    private final int mFrameInterval;
+    private final boolean mBitmapReused;
+    private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+    private final AtomicLong mOfferedCount = new AtomicLong();
+    private Bitmap mReusableBitmap = null;
+
+    private final AtomicLong mReceivedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mSkippedCount = new AtomicLong();
+    private final AtomicLong mDecodedCount = new AtomicLong();
+    private volatile double mLatencyMillis = 0;
+    private volatile double mAverageLatencyMillis = 0;
+    private volatile double mAverageDecodeMillis = 0;
+
+    /**
+     * Constructor (decodes every frame at full size)
+     *
+     * @param source Source of frames read by the pipeline (null if frames are put with
+     * {@link PreviewPipeline#offer(PreviewFrame)})
+     * @param capacity Number of frames held while waiting for decoding
+     * @param listener Listener that receives decoded frames
+     */
+    public PreviewPipeline(LivePreviewSource source, int capacity, Listener listener) {
+        this(source, capacity, new PreviewDecodeOptions(), listener);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param source Source of frames read by the pipeline (null if frames are put with
+     * {@link PreviewPipeline#offer(PreviewFrame)})
+     * @param capacity Number of frames held while waiting for decoding
+     * @param decodeOptions Decoding options (copied, later changes have no effect)
+     * @param listener Listener that receives decoded frames
+     */
+    public PreviewPipeline(LivePreviewSource source, int capacity,
+            PreviewDecodeOptions decodeOptions, Listener listener) {
+        mSource = source;
+        mListener = listener;
+        mRing = new FrameRing(capacity);
+        mFrameInterval = decodeOptions.getFrameInterval();
+        mBitmapReused = decodeOptions.isBitmapReused();
+        mOptions.inSampleSize = decodeOptions.getSampleSize();
+        mOptions.inPreferredConfig = decodeOptions.getBitmapConfig();
+        mOptions.inMutable = mBitmapReused;
+    }
+
+    /**
+     * Start reading and decoding
+     */
+    public synchronized void start() {
+        if (mDecoderThread != null) {
+            return;
+        }
+        mRing.open();
+        mRunning = true;
+        mDecoderThread = new Thread(this::runDecoder, "PreviewDecoder");
+        mDecoderThread.start();
+        if (mSource != null) {
+            mReaderThread = new Thread(this::runReader, "PreviewReader");
+            mReaderThread.start();
+        }
+    }
+
+    /**
+     * Stop reading and decoding, and release frames waiting for decoding<p>
+     * The source is closed to stop the reader thread.
+     */
+    public synchronized void stop() {
+        mRunning = false;
+        mRing.close();
+        if (mSource != null) {
+            try {
+                mSource.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        joinThread(mReaderThread);
+        joinThread(mDecoderThread);
+        mReaderThread = null;
+        mDecoderThread = null;
+    }
+
+    /**
+     * Put frame into the ring<p>
+     * The pipeline adds its own reference, so the caller keeps its reference. The oldest frame is
+     * dropped if the ring is full.
+     *
+     * @param frame Frame
+     */
+    public void offer(PreviewFrame frame) {
+        mReceivedCount.incrementAndGet();
+        if (!mRunning) {
+            mDroppedCount.incrementAndGet();
+            return;
+        }
+        if (mOfferedCount.getAndIncrement() % mFrameInterval != 0) {
+            mSkippedCount.incrementAndGet();
+            return;
+        }
+        if (!mRing.offer(frame)) {
+            mDroppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Decode all frames of a source on the calling thread, without dropping any<p>
+     * Used to replay a recording made by {@link PreviewRecorder}, for example to benchmark a
+     * listener on a fixed frame sequence. Frames are still thinned out by the frame interval.
+     * Must not be called while the pipeline is started.
+     *
+     * @param source Source of frames (read until the end of the stream)
+     * @return Number of frames decoded
+     * @throws IOException IO error
+     */
+    public long replay(LivePreviewSource source) throws IOException {
+        long decodedCount = mDecodedCount.get();
+        PreviewFrame frame;
+        while ((frame = source.nextFrame()) != null) {
+            try {
+                mReceivedCount.incrementAndGet();
+                if (mOfferedCount.getAndIncrement() % mFrameInterval != 0) {
+                    mSkippedCount.incrementAndGet();
+                    continue;
+                }
+                process(frame);
+            } finally {
+                frame.release();
+            }
+        }
+        return mDecodedCount.get() - decodedCount;
+    }
+
+    /**
+     * Acquire number of frames put into the pipeline
+     *
+     * @return Number of frames
+     */
+    public long getReceivedFrameCount() {
+        return mReceivedCount.get();
+    }
+
+    /**
+     * Acquire number of frames dropped without decoding
+     *
+     * @return Number of frames
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedCount.get() + mRing.getDroppedCount();
+    }
+
+    /**
+     * Acquire number of frames thinned out by the frame interval
+     *
+     * @return Number of frames
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedCount.get();
+    }
+
+    /**
+     * Acquire number of frames decoded and passed to the listener
+     *
+     * @return Number of frames
+     */
+    public long getDecodedFrameCount() {
+        return mDecodedCount.get();
+    }
+
+    /**
+     * Acquire ratio of dropped frames among the frames not thinned out
+     *
+     * @return Ratio between 0 and 1
+     */
+    public double getDropRate() {
+        long accepted = mReceivedCount.get() - mSkippedCount.get();
+        return accepted > 0 ? (double) getDroppedFrameCount() / accepted : 0;
+    }
+
+    /**
+     * Acquire latency of the latest frame, from the end of its reception until its bitmap was
+     * passed to the listener<p>
+     * The stream carries no capture time, so the time spent on the device and on the network is
+     * not included.
+     *
+     * @return Latency (unit: ms)
+     */
+    public double getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    /**
+     * Acquire averaged latency (see {@link PreviewPipeline#getLatencyMillis()})
+     *
+     * @return Latency (unit: ms)
+     */
+    public double getAverageLatencyMillis() {
+        return mAverageLatencyMillis;
+    }
+
+    /**
+     * Acquire averaged time taken to decode a frame
+     *
+     * @return Decode time (unit: ms)
+     */
+    public double getAverageDecodeTimeMillis() {
+        return mAverageDecodeMillis;
+    }
+
+    /**
+     * Decode frame
+     *
+     * @param frame Frame
+     * @return Bitmap (null is returned if the frame cannot be decoded)
+     */
+    protected Bitmap decode(PreviewFrame frame) {
+        if (!mBitmapReused) {
+            return BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(), mOptions);
+        }
+
+        mOptions.inBitmap = mReusableBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(),
+                    mOptions);
+        } catch (IllegalArgumentException e) {
+            // the frame size changed and no longer fits the reused bitmap
+            mOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(frame.getData(), 0, frame.getLength(),
+                    mOptions);
+        }
+        if (bitmap != null) {
+            mReusableBitmap = bitmap;
+        }
+        return bitmap;
+    }
+
+    private void runReader() {
+        try {
+            PreviewFrame frame;
+            while ((frame = mSource.nextFrame()) != null) {
+                try {
+                    offer(frame);
+                } finally {
+                    frame.release();
+                }
+            }
+        } catch (IOException e) {
+            if (mRunning) {
+                e.printStackTrace();
+            }
+            // otherwise closed by stop()
+        }
+    }
+
+    private void runDecoder() {
+        PreviewFrame frame;
+        while ((frame = mRing.takeNewest()) != null) {
+            try {
+                process(frame);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    private void process(PreviewFrame frame) {
+        long decodeStart = System.nanoTime();
+        Bitmap bitmap = decode(frame);
+        long decodeEnd = System.nanoTime();
+        mAverageDecodeMillis = average(mAverageDecodeMillis, (decodeEnd - decodeStart) / 1e6d,
+                mDecodedCount.get());
+        if (bitmap == null) {
+            return;
+        }
+
+        double latency = (System.nanoTime() - frame.getTimestampNanos()) / 1e6d;
+        mLatencyMillis = latency;
+        mAverageLatencyMillis = average(mAverageLatencyMillis, latency, mDecodedCount.get());
+        mDecodedCount.incrementAndGet();
+        try {
+            mListener.onFrameDecoded(bitmap, frame);
+        } catch (RuntimeException e) {
+            // keep decoding the following frames
+            e.printStackTrace();
+        }
+    }
+
+    private static double average(double average, double value, long count) {
+        return count == 0 ? value : average + (value - average) * SMOOTHING;
+    }
+
+    private static void joinThread(Thread thread) {
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Listener of decoded frames
+     */
+    public interface Listener {
+        /**
+         * Notifies you of a decoded frame (called on the decode thread)
+         * @param bitmap Decoded bitmap (overwritten by the next frame if
+         * {@link PreviewDecodeOptions#isBitmapReused()})
+         * @param frame Source frame (valid only during this call)
+         */
+        void onFrameDecoded(Bitmap bitmap, PreviewFrame frame);
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Recorder of live preview frames<p>
+ * Frames are written as received, without decoding, so the recording is a plain concatenation of
+ * JPEG files that {@link LivePreviewSource} can read back. An index file is written next to it
+ * with one entry per frame: offset in the recording (8 bytes), length (4 bytes) and time since the
+ * first frame in nanoseconds (8 bytes), all big-endian. Frames and index entries are gathered in
+ * buffers and written in batches, and the files are synchronized to the storage periodically.
+ * <p>
+ * Subscribe the recorder to a {@link PreviewRelay} so that slow storage only drops recorded
+ * frames and never stalls the other consumers.
+ */
+public class PreviewRecorder implements PreviewRelay.Subscriber, Closeable {
+    public final static String INDEX_EXTENSION = ".idx";
+    public final static int INDEX_ENTRY_SIZE = 20;
+    private final static int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private final static int INDEX_BUFFER_SIZE = INDEX_ENTRY_SIZE * 256;
+    private final static long SYNC_INTERVAL_NS = 2000000000L;
+    private final static long RATE_PERIOD_NS = 1000000000L;
+
+    private final FileOutputStream mDataStream;
+    private final FileOutputStream mIndexStream;
+    private final FileChannel mDataChannel;
+    private final FileChannel mIndexChannel;
+    private final ByteBuffer mDataBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final ByteBuffer mIndexBuffer = ByteBuffer.allocateDirect(INDEX_BUFFER_SIZE);
+    private boolean mClosed = false;
+    private IOException mError = null;
+
+    private long mFirstTimestampNanos = -1;
+    private long mLastSyncNanos = 0;
+    private volatile long mFrameCount = 0;
+    private volatile long mByteCount = 0;
+    private volatile long mWrittenByteCount = 0;
+    private volatile long mSyncCount = 0;
+    private long mRateStartNanos = 0;
+    private long mRateStartByteCount = 0;
+    private volatile double mWriteRate = 0;
+
+    /**
+     * Constructor (the index file is the recording file name followed by
+     * {@link PreviewRecorder#INDEX_EXTENSION})
+     *
+     * @param file Recording file (overwritten if it exists)
+     * @throws IOException IO error
+     */
+    public PreviewRecorder(File file) throws IOException {
+        mDataStream = new FileOutputStream(file);
+        try {
+            mIndexStream = new FileOutputStream(getIndexFile(file));
+        } catch (IOException e) {
+            mDataStream.close();
+            throw e;
+        }
+        mDataChannel = mDataStream.getChannel();
+        mIndexChannel = mIndexStream.getChannel();
+    }
+
+    /**
+     * Acquire index file of a recording
+     *
+     * @param file Recording file
+     * @return Index file
+     */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + INDEX_EXTENSION);
+    }
+
+    /**
+     * Record frame (frames received after closing or after a write error are ignored)
+     *
+     * @param frame Frame
+     */
+    @Override
+    public synchronized void onFrame(PreviewFrame frame) {
+        if (mClosed || mError != null) {
+            return;
+        }
+        try {
+            write(frame);
+        } catch (IOException e) {
+            e.printStackTrace();
+            mError = e;
+        }
+    }
+
+    /**
+     * Write the buffered frames, synchronize the files to the storage and close them
+     *
+     * @throws IOException IO error (including an earlier write error)
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mError == null) {
+                flush();
+                mDataChannel.force(false);
+                mIndexChannel.force(false);
+            }
+        } finally {
+            mDataStream.close();
+            mIndexStream.close();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Acquire number of frames recorded
+     *
+     * @return Number of frames
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Acquire number of JPEG bytes recorded, including bytes not yet written
+     *
+     * @return Number of bytes
+     */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * Acquire number of bytes written to the recording file
+     *
+     * @return Number of bytes
+     */
+    public long getWrittenByteCount() {
+        return mWrittenByteCount;
+    }
+
+    /**
+     * Acquire number of bytes written per second, measured over the last second
+     *
+     * @return Write throughput (unit: bytes/sec)
+     */
+    public double getWriteRate() {
+        return mWriteRate;
+    }
+
+    /**
+     * Acquire number of times the files were synchronized to the storage
+     *
+     * @return Number of times
+     */
+    public long getSyncCount() {
+        return mSyncCount;
+    }
+
+    private void write(PreviewFrame frame) throws IOException {
+        long now = System.nanoTime();
+        if (mFirstTimestampNanos < 0) {
+            mFirstTimestampNanos = frame.getTimestampNanos();
+            mLastSyncNanos = now;
+            mRateStartNanos = now;
+        }
+
+        int length = frame.getLength();
+        if (mIndexBuffer.remaining() < INDEX_ENTRY_SIZE) {
+            // data first, so that written entries never point past the written data
+            flush();
+        }
+        mIndexBuffer.putLong(mByteCount);
+        mIndexBuffer.putInt(length);
+        mIndexBuffer.putLong(frame.getTimestampNanos() - mFirstTimestampNanos);
+
+        if (mDataBuffer.remaining() < length) {
+            flushData();
+        }
+        if (length <= mDataBuffer.remaining()) {
+            mDataBuffer.put(frame.getData(), 0, length);
+        } else {
+            // larger than the buffer, write directly
+            writeFully(mDataChannel, ByteBuffer.wrap(frame.getData(), 0, length));
+            mWrittenByteCount += length;
+        }
+        mFrameCount++;
+        mByteCount += length;
+
+        if (now - mLastSyncNanos >= SYNC_INTERVAL_NS) {
+            flush();
+            mDataChannel.force(false);
+            mIndexChannel.force(false);
+            mSyncCount++;
+            mLastSyncNanos = now;
+        }
+        updateRate(now);
+    }
+
+    private void flush() throws IOException {
+        flushData();
+        flushIndex();
+    }
+
+    private void flushData() throws IOException {
+        mDataBuffer.flip();
+        mWrittenByteCount += mDataBuffer.remaining();
+        writeFully(mDataChannel, mDataBuffer);
+        mDataBuffer.clear();
+    }
+
+    private void flushIndex() throws IOException {
+        mIndexBuffer.flip();
+        writeFully(mIndexChannel, mIndexBuffer);
+        mIndexBuffer.clear();
+    }
+
+    private void updateRate(long now) {
+        long elapsed = now - mRateStartNanos;
+        if (elapsed >= RATE_PERIOD_NS) {
+            mWriteRate = (mWrittenByteCount - mRateStartByteCount) * 1e9d / elapsed;
+            mRateStartNanos = now;
+            mRateStartByteCount = mWrittenByteCount;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2018 Ricoh Company, Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.theta360.pluginapplication.preview;
+
+import com.theta360.pluginapplication.network.HttpConnector;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+
+/**
+ * Relay of one live preview stream to several consumers<p>
+ * The device serves only one live preview stream, so the relay opens it once and passes every
+ * frame to all subscribers. Each subscriber has its own ring and its own delivery thread: a slow
+ * subscriber only drops its own oldest frames and never stalls the reader or the other
+ * subscribers. Subscribers share the same frame buffers through reference counting, so frame data
+ * is never copied per subscriber.
+ */
+public class PreviewRelay {
+    public final static int DEFAULT_CAPACITY = 2;
+    /** Enough pooled frames for several subscribers with full rings */
+    private final static int MAX_POOLED_FRAMES = 32;
+
+    private final HttpConnector mConnector;
+    private final PreviewFramePool mPool;
+    private final Object mLock = new Object();
+    /** Replaced on each change so that the reader iterates without locking or allocation */
+    private volatile Subscription[] mSubscriptions = new Subscription[0];
+    private LivePreviewSource mSource = null;
+    private Thread mReaderThread = null;
+    private volatile boolean mRunning = false;
+    private final AtomicLong mRelayedCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param connector Connector used to open the live preview stream
+     */
+    public PreviewRelay(HttpConnector connector) {
+        mConnector = connector;
+        mPool = new PreviewFramePool(PreviewFramePool.DEFAULT_FRAME_CAPACITY, MAX_POOLED_FRAMES);
+    }
+
+    /**
+     * Open the live preview stream and start relaying
+     *
+     * @throws IOException IO error
+     * @throws JSONException JSON error
+     */
+    public void start() throws IOException, JSONException {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+            mSource = new LivePreviewSource(mConnector.getLivePreview(), mPool);
+            mRunning = true;
+            mReaderThread = new Thread(this::runReader, "PreviewRelay");
+            mReaderThread.start();
+        }
+    }
+
+    /**
+     * Close the live preview stream and stop relaying (subscriptions are kept)
+     */
+    public void stop() {
+        Thread readerThread;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            try {
+                mSource.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            readerThread = mReaderThread;
+            mReaderThread = null;
+        }
+        if (readerThread != Thread.currentThread()) {
+            try {
+                readerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Add subscriber
+     *
+     * @param subscriber Subscriber
+     * @param capacity Number of frames held for the subscriber while it is busy
+     * @return Subscription
+     */
+    public Subscription subscribe(Subscriber subscriber, int capacity) {
+        Subscription subscription = new Subscription(subscriber, capacity);
+        synchronized (mLock) {
+            Subscription[] subscriptions = Arrays.copyOf(mSubscriptions,
+                    mSubscriptions.length + 1);
+            subscriptions[subscriptions.length - 1] = subscription;
+            mSubscriptions = subscriptions;
+        }
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * Remove subscriber and release the frames held for it
+     *
+     * @param subscription Subscription returned by {@link PreviewRelay#subscribe}
+     */
+    public void unsubscribe(Subscription subscription) {
+        synchronized (mLock) {
+            Subscription[] subscriptions = new Subscription[mSubscriptions.length];
+            int count = 0;
+            for (Subscription current : mSubscriptions) {
+                if (current != subscription) {
+                    subscriptions[count++] = current;
+                }
+            }
+            mSubscriptions = Arrays.copyOf(subscriptions, count);
+        }
+        subscription.stop();
+    }
+
+    /**
+     * Acquire number of frames read from the stream
+     *
+     * @return Number of frames
+     */
+    public long getRelayedFrameCount() {
+        return mRelayedCount.get();
+    }
+
+    /**
+     * Acquire number of frames received per second
+     *
+     * @return Frame rate (unit: frames/sec, 0 if not started)
+     */
+    public double getFrameRate() {
+        LivePreviewSource source = mSource;
+        return source != null ? source.getFrameRate() : 0;
+    }
+
+    /**
+     * Acquire number of JPEG bytes received per second
+     *
+     * @return Data rate (unit: bytes/sec, 0 if not started)
+     */
+    public double getByteRate() {
+        LivePreviewSource source = mSource;
+        return source != null ? source.getByteRate() : 0;
+    }
+
+    private void runReader() {
+        LivePreviewSource source = mSource;
+        try {
+            PreviewFrame frame;
+            while ((frame = source.nextFrame()) != null) {
+                try {
+                    for (Subscription subscription : mSubscriptions) {
+                        subscription.mRing.offer(frame);
+                    }
+                    mRelayedCount.incrementAndGet();
+                } finally {
+                    frame.release();
+                }
+            }
+        } catch (IOException e) {
+            if (mRunning) {
+                e.printStackTrace();
+            }
+            // otherwise closed by stop()
+        }
+
+        boolean ended = mRunning;
+        synchronized (mLock) {
+            if (mReaderThread == Thread.currentThread()) {
+                mRunning = false;
+                mReaderThread = null;
+            }
+        }
+        if (ended) {
+            for (Subscription subscription : mSubscriptions) {
+                subscription.mSubscriber.onStreamEnded();
+            }
+        }
+    }
+
+    /**
+     * Subscription of a subscriber
+     */
+    public static class Subscription {
+        private final Subscriber mSubscriber;
+        private final FrameRing mRing;
+        private final AtomicLong mDeliveredCount = new AtomicLong();
+        private Thread mThread = null;
+
+        private Subscription(Subscriber subscriber, int capacity) {
+            mSubscriber = subscriber;
+            mRing = new FrameRing(capacity);
+        }
+
+        /**
+         * Acquire number of frames passed to the subscriber
+         *
+         * @return Number of frames
+         */
+        public long getDeliveredFrameCount() {
+            return mDeliveredCount.get();
+        }
+
+        /**
+         * Acquire number of frames dropped because the subscriber was busy
+         *
+         * @return Number of frames
+         */
+        public long getDroppedFrameCount() {
+            return mRing.getDroppedCount();
+        }
+
+        private void start() {
+            mThread = new Thread(this::run, "PreviewSubscriber");
+            mThread.start();
+        }
+
+        private void stop() {
+            mRing.close();
+            if (mThread != Thread.currentThread()) {
+                try {
+                    mThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void run() {
+            PreviewFrame frame;
+            while ((frame = mRing.take()) != null) {
+                try {
+                    mSubscriber.onFrame(frame);
+                    mDeliveredCount.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // keep delivering the following frames
+                    e.printStackTrace();
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Subscriber of relayed frames
+     */
+    public interface Subscriber {
+        /**
+         * Notifies you of a frame (called on the delivery thread of the subscriber)
+         * @param frame Frame (valid only during this call unless {@link PreviewFrame#retain()}
+         * is called)
+         */
+        void onFrame(PreviewFrame frame);
+
+        /**
+         * Notifies you that the stream ended without {@link PreviewRelay#stop()}
+         */
+        default void onStreamEnded() {
+        }
+    }
+}
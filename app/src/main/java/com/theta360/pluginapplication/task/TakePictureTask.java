@@ -16,62 +16,37 @@
 
 package com.theta360.pluginapplication.task;
 
-import android.os.AsyncTask;
-import com.theta360.pluginapplication.network.HttpConnector;
-import com.theta360.pluginapplication.network.HttpEventListener;
+import com.theta360.pluginapplication.network.AsyncHttpConnector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-public class TakePictureTask extends AsyncTask<Void, Void, HttpConnector.ShootResult> {
-    private Callback mCallback;
+public class TakePictureTask {
+    private final AsyncHttpConnector mCamera;
+    private final Callback mCallback;
 
-    public TakePictureTask(Callback callback) {
+    public TakePictureTask(AsyncHttpConnector camera, Callback callback) {
+        this.mCamera = camera;
         this.mCallback = callback;
     }
 
-    @Override
-    protected void onPreExecute() {
-
-    }
-
-    @Override
-    protected HttpConnector.ShootResult doInBackground(Void... params) {
-        CaptureListener postviewListener = new CaptureListener();
-        HttpConnector camera = new HttpConnector("127.0.0.1:8080");
-
-        return camera.takePicture(postviewListener);
-    }
-
-    @Override
-    protected void onPostExecute(HttpConnector.ShootResult result) {
-
-    }
-
-    private class CaptureListener implements HttpEventListener {
-        private String latestCapturedFileId;
-
-        @Override
-        public void onCheckStatus(boolean newStatus) {
-
-        }
-
-        @Override
-        public void onObjectChanged(String latestCapturedFileId) {
-            this.latestCapturedFileId = latestCapturedFileId;
-            mCallback.onTakePicture(latestCapturedFileId);
-        }
-
-        @Override
-        public void onCompleted() {
-
-        }
-
-        @Override
-        public void onError(String errorMessage) {
-
-        }
+    public CompletableFuture<String> execute() {
+        return mCamera.takePicture().whenComplete((fileUrl, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = throwable instanceof CompletionException
+                        && throwable.getCause() != null ? throwable.getCause() : throwable;
+                cause.printStackTrace();
+                mCallback.onError(cause.getMessage());
+                return;
+            }
+            mCallback.onTakePicture(fileUrl);
+        });
     }
 
     public interface Callback {
         void onTakePicture(String fileUrl);
+
+        default void onError(String errorMessage) {
+        }
     }
 
 }
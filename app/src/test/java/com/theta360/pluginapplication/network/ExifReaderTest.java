@@ -0,0 +1,126 @@
+package com.theta360.pluginapplication.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Tests of {@link ExifReader}
+ */
+public class ExifReaderTest {
+    final static byte[] THUMBNAIL = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
+    /** End of IFD0 and of the Exif IFD in the data created by {@link #createTiff()} */
+    private final static int IFD0_END = 50;
+    private final static int EXIF_IFD_END = 80;
+    private final static int THUMBNAIL_OFFSET = 110;
+
+    @Test
+    public void readsTagsAndThumbnail() {
+        byte[] tiff = createTiff();
+        ImageMetadata metadata = new ImageMetadata();
+
+        assertTrue(ExifReader.read(tiff, 0, tiff.length, 1000, metadata));
+
+        assertEquals("RICOH", metadata.getMake());
+        assertEquals("THETA", metadata.getModel());
+        assertEquals(Integer.valueOf(100), metadata.getIsoSpeed());
+        assertArrayEquals(THUMBNAIL, metadata.getThumbnail());
+        assertEquals(1000 + THUMBNAIL_OFFSET, metadata.getThumbnailOffset());
+    }
+
+    @Test
+    public void readsOnlyEntriesInsideTruncatedIfd() {
+        byte[] tiff = createTiff();
+        ImageMetadata metadata = new ImageMetadata();
+
+        // the segment ends in the middle of the Exif IFD, before IFD1 and the thumbnail
+        assertTrue(ExifReader.read(tiff, 0, IFD0_END + 20, 0, metadata));
+
+        assertEquals("RICOH", metadata.getMake());
+        assertEquals("THETA", metadata.getModel());
+        assertNull(metadata.getIsoSpeed());
+        assertNull(metadata.getThumbnail());
+    }
+
+    @Test
+    public void ignoresValuesOfTruncatedIfd0() {
+        byte[] tiff = createTiff();
+        ImageMetadata metadata = new ImageMetadata();
+
+        // two of the three entries of IFD0 remain, and the strings they point to are cut off
+        assertTrue(ExifReader.read(tiff, 0, 8 + 2 + 2 * 12 + 4, 0, metadata));
+
+        assertNull(metadata.getMake());
+        assertNull(metadata.getModel());
+        assertNull(metadata.getIsoSpeed());
+        assertNull(metadata.getThumbnail());
+    }
+
+    @Test
+    public void ignoresThumbnailOutsideSegment() {
+        byte[] tiff = Arrays.copyOf(createTiff(), THUMBNAIL_OFFSET + 2);
+        ImageMetadata metadata = new ImageMetadata();
+
+        assertTrue(ExifReader.read(tiff, 0, tiff.length, 0, metadata));
+
+        assertEquals(Integer.valueOf(100), metadata.getIsoSpeed());
+        assertNull(metadata.getThumbnail());
+    }
+
+    @Test
+    public void rejectsDataWithoutTiffHeader() {
+        byte[] data = "not a TIFF header".getBytes(StandardCharsets.US_ASCII);
+
+        assertFalse(ExifReader.read(data, 0, data.length, 0, new ImageMetadata()));
+    }
+
+    /**
+     * Create little endian TIFF structure with Make, Model, ISO speed and a thumbnail
+     *
+     * @return TIFF data
+     */
+    static byte[] createTiff() {
+        ByteBuffer buffer = ByteBuffer.allocate(THUMBNAIL_OFFSET + THUMBNAIL.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+
+        // IFD0 at 8
+        buffer.putShort((short) 3);
+        putEntry(buffer, 0x010F, 2, 6, IFD0_END);
+        putEntry(buffer, 0x0110, 2, 6, IFD0_END + 6);
+        putEntry(buffer, 0x8769, 4, 1, IFD0_END + 12);
+        buffer.putInt(EXIF_IFD_END);
+        buffer.put("RICOH\0THETA\0".getBytes(StandardCharsets.US_ASCII));
+
+        // Exif IFD at 62
+        buffer.putShort((short) 1);
+        putEntry(buffer, 0x8827, 3, 1, 100);
+        buffer.putInt(0);
+
+        // IFD1 at 80
+        buffer.putShort((short) 2);
+        putEntry(buffer, 0x0201, 4, 1, THUMBNAIL_OFFSET);
+        putEntry(buffer, 0x0202, 4, 1, THUMBNAIL.length);
+        buffer.putInt(0);
+
+        buffer.put(THUMBNAIL);
+        return buffer.array();
+    }
+
+    private static void putEntry(ByteBuffer buffer, int tag, int type, int count, int value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == 3) {
+            buffer.putShort((short) value).putShort((short) 0);
+        } else {
+            buffer.putInt(value);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.theta360.pluginapplication.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of {@link FileDownloader} against a local stand-in of the device web server
+ */
+public class FileDownloaderTest {
+    private final static int FILE_SIZE = 4 * 1024 * 1024;
+    /** Each connection of the stand-in server sends this size and then waits */
+    private final static int THROTTLE_CHUNK_SIZE = 64 * 1024;
+    private final static long THROTTLE_SLEEP_MS = 10;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private HttpConnector mConnector;
+    private volatile byte[] mContent;
+    /** Responses that fail with HTTP 500 when set */
+    private volatile boolean mFailRanges = false;
+    /** Responses break at this position of the file when set ("-1" if they do not break) */
+    private volatile long mBreakPosition = -1;
+
+    @Before
+    public void setUp() throws IOException {
+        mContent = createContent(FILE_SIZE, 1);
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        }));
+        mServer.createContext("/files/", this::serve);
+        mServer.start();
+        mConnector = new HttpConnector("127.0.0.1:" + mServer.getAddress().getPort());
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void segmentedDownloadIsByteExact() throws IOException {
+        File file = new File(mFolder.getRoot(), "R0010001.JPG");
+
+        ImageData imageData = new FileDownloader(mConnector).downloadSegmented(getFileId(), file,
+                new NullListener(), 4);
+
+        assertArrayEquals(mContent, Files.readAllBytes(imageData.getFile().toPath()));
+        assertFalse(new File(file.getPath() + ".part").exists());
+        assertFalse(new File(file.getPath() + ".part.info").exists());
+    }
+
+    @Test
+    public void failedSegmentedDownloadLeavesNoPartialFile() throws IOException {
+        File file = new File(mFolder.getRoot(), "R0010001.JPG");
+        mFailRanges = true;
+
+        try {
+            new FileDownloader(mConnector).downloadSegmented(getFileId(), file,
+                    new NullListener(), 4);
+            fail("Download must fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".part").exists());
+        assertFalse(new File(file.getPath() + ".part.info").exists());
+    }
+
+    @Test
+    public void preallocatedPartialFileIsNotTakenAsComplete() throws IOException {
+        File file = new File(mFolder.getRoot(), "R0010001.JPG");
+        File partFile = new File(file.getPath() + ".part");
+        RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+        raf.setLength(FILE_SIZE);
+        raf.close();
+
+        ImageData imageData = new FileDownloader(mConnector).downloadSegmented(getFileId(), file,
+                new NullListener(), 4);
+
+        assertArrayEquals(mContent, Files.readAllBytes(imageData.getFile().toPath()));
+    }
+
+    @Test
+    public void restartsWhenFileBecameShorterThanPartialData() throws IOException {
+        File file = new File(mFolder.getRoot(), "R0010001.JPG");
+        mBreakPosition = FILE_SIZE / 2;
+        try {
+            new FileDownloader(mConnector).download(getFileId(), file, new NullListener());
+            fail("Download must fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(new File(file.getPath() + ".part.info").exists());
+
+        // the file was replaced with a file shorter than the partial data
+        mBreakPosition = -1;
+        mContent = createContent(FILE_SIZE / 4, 2);
+        ImageData imageData = new FileDownloader(mConnector).download(getFileId(), file,
+                new NullListener());
+
+        assertArrayEquals(mContent, Files.readAllBytes(imageData.getFile().toPath()));
+        assertFalse(new File(file.getPath() + ".part.info").exists());
+    }
+
+    private String getFileId() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort()
+                + "/files/150100525831424d42079d18e0b6c300/100RICOH/R0010001.JPG";
+    }
+
+    private static byte[] createContent(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] content = mContent;
+        exchange.getRequestBody().close();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        long start = 0;
+        long end = content.length - 1;
+        int code = 200;
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            if (start >= content.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            if (mFailRanges && start > 0) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + content.length);
+        }
+
+        int length = (int) (end - start + 1);
+        exchange.sendResponseHeaders(code, length);
+        OutputStream os = exchange.getResponseBody();
+        long breakPosition = mBreakPosition;
+        int sentLength = breakPosition < 0 ? length
+                : (int) Math.max(0, Math.min(length, breakPosition - start));
+        try {
+            for (int offset = 0; offset < sentLength; offset += THROTTLE_CHUNK_SIZE) {
+                os.write(content, (int) start + offset, Math.min(THROTTLE_CHUNK_SIZE,
+                        sentLength - offset));
+                os.flush();
+                Thread.sleep(THROTTLE_SLEEP_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static class NullListener implements HttpDownloadListener {
+        @Override
+        public void onTotalSize(long totalSize) {
+        }
+
+        @Override
+        public void onDataReceived(int size) {
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.theta360.pluginapplication.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link HttpConnectionPool} against a local stand-in of the OSC server
+ */
+public class HttpConnectionPoolTest {
+    private StandInServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void reusesConnection() throws IOException {
+        HttpConnectionPool pool = new HttpConnectionPool();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("{\"state\":\"done\"}", request(pool, "POST", "/osc/state"));
+        }
+
+        assertEquals(1, pool.getConnectCount());
+        assertEquals(2, pool.getReusedCount());
+        assertEquals(1, mServer.mAcceptCount.get());
+    }
+
+    @Test
+    public void replacesIdleConnectionClosedByDevice() throws Exception {
+        HttpConnectionPool pool = new HttpConnectionPool();
+        mServer.mCloseAfterResponse = true;
+        request(pool, "POST", "/osc/state");
+        // let the close reach the client before the socket is reused
+        Thread.sleep(100);
+        mServer.mCloseAfterResponse = false;
+
+        assertEquals("{\"state\":\"done\"}", request(pool, "POST", "/osc/commands/execute"));
+        assertEquals(2, pool.getConnectCount());
+        assertEquals(1, pool.getStaleCount());
+        assertEquals(2, mServer.mRequestCount.get());
+    }
+
+    @Test
+    public void doesNotResendCommandReceivedByDevice() throws IOException {
+        HttpConnectionPool pool = new HttpConnectionPool();
+        request(pool, "POST", "/osc/state");
+        mServer.mCloseWithoutResponse = true;
+
+        try {
+            request(pool, "POST", "/osc/commands/execute");
+            fail("A command on a connection closed by the device must fail");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(2, mServer.mRequestCount.get());
+        assertEquals(1, pool.getConnectCount());
+    }
+
+    @Test
+    public void resendsIdempotentRequest() throws IOException {
+        HttpConnectionPool pool = new HttpConnectionPool();
+        request(pool, "GET", "/osc/info");
+        mServer.mCloseWithoutResponse = true;
+
+        assertEquals("{\"state\":\"done\"}", request(pool, "GET", "/osc/info"));
+        assertEquals(3, mServer.mRequestCount.get());
+        assertEquals(2, pool.getConnectCount());
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void failsWhenDeviceDoesNotRespond() throws IOException {
+        HttpConnectionPool pool = new HttpConnectionPool(
+                HttpConnectionPool.DEFAULT_MAX_IDLE_CONNECTIONS,
+                HttpConnectionPool.DEFAULT_KEEP_ALIVE_DURATION_MS, 200);
+        mServer.mHang = true;
+
+        request(pool, "POST", "/osc/state");
+    }
+
+    @Test
+    public void rejectsInvalidContentLength() throws IOException {
+        assertInvalidResponseRejected("HTTP/1.1 200 OK\r\nContent-Length: 1x\r\n\r\n{}");
+    }
+
+    @Test
+    public void rejectsInvalidStatusCode() throws IOException {
+        assertInvalidResponseRejected("HTTP/1.1 2OO OK\r\nContent-Length: 2\r\n\r\n{}");
+    }
+
+    @Test
+    public void rejectsInvalidChunkSize() throws IOException {
+        assertInvalidResponseRejected(
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n{}\r\n0\r\n\r\n");
+    }
+
+    private void assertInvalidResponseRejected(String response) throws IOException {
+        HttpConnectionPool pool = new HttpConnectionPool();
+        mServer.mInvalidResponse = response;
+        try {
+            request(pool, "GET", "/osc/info");
+            fail("An invalid response must fail with IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the connection is not reused
+        mServer.mInvalidResponse = null;
+        assertEquals("{\"state\":\"done\"}", request(pool, "GET", "/osc/info"));
+        assertEquals(2, pool.getConnectCount());
+        assertEquals(0, pool.getReusedCount());
+    }
+
+    private String request(HttpConnectionPool pool, String method, String path)
+            throws IOException {
+        URL url = new URL("http://127.0.0.1:" + mServer.getPort() + path);
+        byte[] body = method.equals("POST") ? "{}".getBytes(StandardCharsets.UTF_8) : null;
+        HttpConnectionPool.Response response = pool.execute(method, url, null, body);
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            InputStream is = response.getInputStream();
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                os.write(buffer, 0, length);
+            }
+            return new String(os.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Keep-alive server answering every request with a fixed JSON body
+     */
+    private static class StandInServer {
+        private final ServerSocket mServerSocket;
+        private final AtomicInteger mAcceptCount = new AtomicInteger();
+        private final AtomicInteger mRequestCount = new AtomicInteger();
+        private volatile boolean mCloseAfterResponse = false;
+        /** Close the connection once after receiving the next request */
+        private volatile boolean mCloseWithoutResponse = false;
+        private volatile boolean mHang = false;
+        /** Response sent as is when set */
+        private volatile String mInvalidResponse = null;
+
+        private StandInServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this::accept, "StandInServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        private void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        private void accept() {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = mServerSocket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                mAcceptCount.incrementAndGet();
+                Thread thread = new Thread(() -> serve(socket), "StandInConnection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                OutputStream os = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = reader.readLine()) != null) {
+                    int contentLength = 0;
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                        if (line.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring(15).trim());
+                        }
+                    }
+                    for (int i = 0; i < contentLength; i++) {
+                        reader.read();
+                    }
+                    mRequestCount.incrementAndGet();
+
+                    if (mCloseWithoutResponse) {
+                        mCloseWithoutResponse = false;
+                        break;
+                    }
+                    if (mHang) {
+                        Thread.sleep(10000);
+                        break;
+                    }
+                    String invalidResponse = mInvalidResponse;
+                    if (invalidResponse != null) {
+                        os.write(invalidResponse.getBytes(StandardCharsets.US_ASCII));
+                        os.flush();
+                        continue;
+                    }
+                    byte[] body = "{\"state\":\"done\"}".getBytes(StandardCharsets.UTF_8);
+                    os.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n"
+                            + "Content-Length: " + body.length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    os.write(body);
+                    os.flush();
+                    if (mCloseAfterResponse) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // connection closed by the client
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.theta360.pluginapplication.network;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+/**
+ * Tests of {@link JpegMetadataParser}
+ */
+public class JpegMetadataParserTest {
+    private final static byte[] EXIF_SIGNATURE = "Exif\0\0".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] XMP = ("http://ns.adobe.com/xap/1.0/\0<x:xmpmeta><rdf:RDF>"
+            + "<rdf:Description GPano:PoseHeadingDegrees=\"270.0\">"
+            + "<GPano:PosePitchDegrees>1.5</GPano:PosePitchDegrees>"
+            + "<GPano:PoseRollDegrees>-2.25</GPano:PoseRollDegrees>"
+            + "</rdf:Description></rdf:RDF></x:xmpmeta>").getBytes(StandardCharsets.US_ASCII);
+    /** Quantization table segment, which the parser skips */
+    private final static byte[] DQT = new byte[67];
+    /** SOI, Exif segment and XMP segment, after which parsing stops */
+    private final static int METADATA_SIZE = 2 + 4 + EXIF_SIGNATURE.length
+            + ExifReaderTest.createTiff().length + 4 + XMP.length;
+    private final static byte[] IMAGE_DATA = {0x00, 0x0C, 0x03, 0x01, 0x00, 0x02, 0x11, 0x03};
+
+    @Test
+    public void parsesDataFedOneByteAtATime() {
+        byte[] jpeg = createJpeg(true, false);
+        JpegMetadataParser parser = createParser();
+
+        int position = 0;
+        while (position < jpeg.length && parser.feed(jpeg, position, 1)) {
+            position++;
+        }
+
+        assertTrue(parser.isDone());
+        assertMetadata(parser.getMetadata());
+        assertEquals(METADATA_SIZE, parser.getConsumedSize());
+    }
+
+    @Test
+    public void parsesDataSplitAtAnyPosition() {
+        byte[] jpeg = createJpeg(true, false);
+
+        for (int split = 1; split < jpeg.length; split++) {
+            JpegMetadataParser parser = createParser();
+            if (parser.feed(jpeg, 0, split)) {
+                parser.feed(jpeg, split, jpeg.length - split);
+            }
+
+            assertTrue("split at " + split, parser.isDone());
+            assertMetadata(parser.getMetadata());
+        }
+    }
+
+    @Test
+    public void readsExifAfterXmp() {
+        byte[] jpeg = createJpeg(false, false);
+        JpegMetadataParser parser = createParser();
+
+        assertFalse(parser.feed(jpeg, 0, jpeg.length));
+
+        assertMetadata(parser.getMetadata());
+    }
+
+    @Test
+    public void stopsAtXmpWhenOnlyPoseIsNeeded() {
+        byte[] jpeg = createJpeg(false, false);
+        JpegMetadataParser parser = new JpegMetadataParser();
+
+        assertFalse(parser.feed(jpeg, 0, jpeg.length));
+
+        assertTrue(parser.isXmpFound());
+        assertEquals(1.5d, parser.getPosePitchDegrees(), 0);
+        assertEquals(-2.25d, parser.getPoseRollDegrees(), 0);
+        assertEquals(270d, parser.getPoseHeadingDegrees(), 0);
+        // SOI and the XMP segment
+        assertEquals(2 + 4 + XMP.length, parser.getConsumedSize());
+    }
+
+    @Test
+    public void stopsAtImageDataWithoutXmp() {
+        byte[] jpeg = createJpeg(true, true);
+        JpegMetadataParser parser = createParser();
+
+        assertFalse(parser.feed(jpeg, 0, jpeg.length));
+
+        assertFalse(parser.isXmpFound());
+        assertEquals("RICOH", parser.getMetadata().getMake());
+        assertNull(parser.getMetadata().getPitch());
+        assertEquals(getImageDataPosition(jpeg), parser.getConsumedSize());
+    }
+
+    @Test
+    public void skipsSegmentsThatAreNotNeeded() {
+        byte[] jpeg = createJpeg(true, true);
+        JpegMetadataParser parser = createParser();
+
+        int position = 0;
+        int skipped = 0;
+        while (parser.feed(jpeg, position, 1)) {
+            position++;
+            int skippable = parser.getSkippableSize();
+            parser.skip(skippable);
+            position += skippable;
+            skipped += skippable;
+        }
+
+        assertEquals(DQT.length, skipped);
+        assertEquals("RICOH", parser.getMetadata().getMake());
+        assertEquals(getImageDataPosition(jpeg), parser.getConsumedSize());
+    }
+
+    @Test
+    public void stopsAtDataThatIsNotJpeg() {
+        byte[] data = "GIF89a".getBytes(StandardCharsets.US_ASCII);
+        JpegMetadataParser parser = createParser();
+
+        assertFalse(parser.feed(data, 0, data.length));
+        assertFalse(parser.isXmpFound());
+    }
+
+    private static JpegMetadataParser createParser() {
+        JpegMetadataParser parser = new JpegMetadataParser();
+        parser.setMetadata(new ImageMetadata());
+        return parser;
+    }
+
+    private static void assertMetadata(ImageMetadata metadata) {
+        assertEquals("RICOH", metadata.getMake());
+        assertEquals("THETA", metadata.getModel());
+        assertEquals(Integer.valueOf(100), metadata.getIsoSpeed());
+        assertArrayEquals(ExifReaderTest.THUMBNAIL, metadata.getThumbnail());
+        assertEquals(Double.valueOf(1.5d), metadata.getPitch());
+        assertEquals(Double.valueOf(-2.25d), metadata.getRoll());
+        assertEquals(Double.valueOf(270d), metadata.getHeading());
+    }
+
+    /**
+     * Create JPEG file with Exif and XMP segments, a segment that is not needed and image data
+     *
+     * @param exifFirst true:Exif before XMP, false:XMP before Exif
+     * @param withoutXmp true:No XMP segment
+     * @return JPEG data
+     */
+    private static byte[] createJpeg(boolean exifFirst, boolean withoutXmp) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        os.write(0xFF);
+        os.write(0xD8);
+        byte[] tiff = ExifReaderTest.createTiff();
+        byte[] exif = new byte[EXIF_SIGNATURE.length + tiff.length];
+        System.arraycopy(EXIF_SIGNATURE, 0, exif, 0, EXIF_SIGNATURE.length);
+        System.arraycopy(tiff, 0, exif, EXIF_SIGNATURE.length, tiff.length);
+        if (exifFirst) {
+            writeSegment(os, 0xE1, exif);
+        }
+        if (!withoutXmp) {
+            writeSegment(os, 0xE1, XMP);
+        }
+        if (!exifFirst) {
+            writeSegment(os, 0xE1, exif);
+        }
+        writeSegment(os, 0xDB, DQT);
+        writeSegment(os, 0xDA, IMAGE_DATA);
+        os.write(0xFF);
+        os.write(0xD9);
+        return os.toByteArray();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream os, int marker, byte[] data) {
+        os.write(0xFF);
+        os.write(marker);
+        os.write((data.length + 2) >> 8);
+        os.write((data.length + 2) & 0xFF);
+        os.write(data, 0, data.length);
+    }
+
+    /**
+     * Acquire position just after the SOS marker, where parsing stops without XMP
+     */
+    private static long getImageDataPosition(byte[] jpeg) {
+        for (int index = 2; index < jpeg.length - 1; index++) {
+            if ((jpeg[index] & 0xFF) == 0xFF && (jpeg[index + 1] & 0xFF) == 0xDA) {
+                return index + 2;
+            }
+        }
+        return -1;
+    }
+}
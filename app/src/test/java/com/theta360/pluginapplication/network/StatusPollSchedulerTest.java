@@ -0,0 +1,196 @@
+package com.theta360.pluginapplication.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link StatusPollScheduler}
+ */
+public class StatusPollSchedulerTest {
+    private StatusPollScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new StatusPollScheduler(2, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void backsOffUntilCompleted() throws Exception {
+        List<Long> pollNanos = new ArrayList<>();
+        CompletableFuture<Void> completed = new CompletableFuture<>();
+        mScheduler.schedule("unknown", () -> {
+            pollNanos.add(System.nanoTime());
+            if (pollNanos.size() < 6) {
+                return false;
+            }
+            completed.complete(null);
+            return true;
+        });
+
+        completed.get(5, TimeUnit.SECONDS);
+
+        // 50, 75, 112, 168 and 252 ms
+        long previous = 0;
+        for (int index = 1; index < pollNanos.size(); index++) {
+            long interval = TimeUnit.NANOSECONDS.toMillis(
+                    pollNanos.get(index) - pollNanos.get(index - 1));
+            assertTrue("interval " + interval + " after " + previous, interval > previous);
+            previous = interval;
+        }
+        assertTrue(previous >= 200);
+        assertEquals(6, mScheduler.getRequestCount());
+        assertEquals(1, mScheduler.getCompletedCount());
+    }
+
+    @Test
+    public void firstCheckWaitsForExpectedCompletion() throws Exception {
+        CompletableFuture<Long> first = new CompletableFuture<>();
+        long start = System.nanoTime();
+        mScheduler.schedule("camera.takePicture", () -> {
+            first.complete(System.nanoTime());
+            return System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400);
+        });
+        waitForCompletion(1);
+        double expected = mScheduler.getExpectedCompletionMillis("camera.takePicture");
+        assertTrue(expected >= 400);
+
+        CompletableFuture<Long> second = new CompletableFuture<>();
+        long secondStart = System.nanoTime();
+        mScheduler.schedule("camera.takePicture", () -> {
+            second.complete(System.nanoTime());
+            return true;
+        });
+
+        long delay = TimeUnit.NANOSECONDS.toMillis(second.get(5, TimeUnit.SECONDS) - secondStart);
+        assertTrue("first check after " + delay + " ms", delay >= expected * 0.9d - 10);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(first.get() - start)
+                < StatusPollScheduler.MIN_INTERVAL_MS * 2);
+    }
+
+    @Test
+    public void givesUpAfterTimeout() throws Exception {
+        CompletableFuture<Long> timedOut = new CompletableFuture<>();
+        long start = System.nanoTime();
+        mScheduler.schedule("never", new StatusPollScheduler.Poll() {
+            @Override
+            public boolean poll() {
+                return false;
+            }
+
+            @Override
+            public void onTimeout() {
+                timedOut.complete(System.nanoTime());
+            }
+        });
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(timedOut.get(5, TimeUnit.SECONDS) - start);
+        long requestCount = mScheduler.getRequestCount();
+        Thread.sleep(StatusPollScheduler.MAX_INTERVAL_MS + 200);
+
+        assertTrue("timed out after " + elapsed + " ms", elapsed >= 1000);
+        assertEquals(1, mScheduler.getTimedOutCount());
+        assertEquals(0, mScheduler.getCompletedCount());
+        assertEquals(requestCount, mScheduler.getRequestCount());
+    }
+
+    @Test
+    public void stopsWhenCommandFails() throws Exception {
+        CompletableFuture<String> error = new CompletableFuture<>();
+        mScheduler.schedule("camera.takePicture", new StatusPollScheduler.Poll() {
+            @Override
+            public boolean poll() throws IOException {
+                throw new IOException("Shooting failed");
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                error.complete(errorMessage);
+            }
+        });
+
+        assertEquals("Shooting failed", error.get(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(1, mScheduler.getRequestCount());
+        assertEquals(1, mScheduler.getFailedCount());
+        assertEquals(0, mScheduler.getCompletedCount());
+        assertEquals(-1, mScheduler.getExpectedCompletionMillis("camera.takePicture"), 0);
+    }
+
+    @Test
+    public void notifiesCompletionOnceWhenListenerThrows() throws Exception {
+        AtomicInteger pollCount = new AtomicInteger();
+        AtomicInteger completedCount = new AtomicInteger();
+        mScheduler.schedule("camera.takePicture", new StatusPollScheduler.Poll() {
+            @Override
+            public boolean poll() {
+                return pollCount.incrementAndGet() >= 2;
+            }
+
+            @Override
+            public void onInProgress() {
+                throw new IllegalStateException("listener failed");
+            }
+
+            @Override
+            public void onCompleted() {
+                completedCount.incrementAndGet();
+                throw new IllegalStateException("listener failed");
+            }
+        });
+
+        waitForCompletion(1);
+        Thread.sleep(300);
+        assertEquals(2, pollCount.get());
+        assertEquals(1, completedCount.get());
+        assertEquals(0, mScheduler.getFailedCount());
+    }
+
+    @Test
+    public void stopsWhenCheckThrows() throws Exception {
+        CompletableFuture<String> error = new CompletableFuture<>();
+        mScheduler.schedule("camera.takePicture", new StatusPollScheduler.Poll() {
+            @Override
+            public boolean poll() {
+                throw new IllegalStateException("unexpected response");
+            }
+
+            @Override
+            public void onError(String errorMessage) {
+                error.complete(errorMessage);
+            }
+        });
+
+        assertTrue(error.get(5, TimeUnit.SECONDS).contains("unexpected response"));
+        Thread.sleep(200);
+        assertEquals(1, mScheduler.getRequestCount());
+        assertEquals(1, mScheduler.getFailedCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sharedSchedulerRefusesShutdown() {
+        StatusPollScheduler.getDefault().shutdown();
+    }
+
+    private void waitForCompletion(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (mScheduler.getCompletedCount() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, mScheduler.getCompletedCount());
+    }
+}
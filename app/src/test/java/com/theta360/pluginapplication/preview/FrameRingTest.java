@@ -0,0 +1,106 @@
+package com.theta360.pluginapplication.preview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Tests of {@link FrameRing}
+ */
+public class FrameRingTest {
+    private final PreviewFramePool mPool = new PreviewFramePool(16, 8);
+
+    @Test
+    public void overwritesOldestFrameWhenFull() {
+        FrameRing ring = new FrameRing(2);
+        PreviewFrame[] frames = createFrames(3);
+        for (PreviewFrame frame : frames) {
+            assertTrue(ring.offer(frame));
+        }
+
+        assertEquals(1, ring.getDroppedCount());
+        // only the reference of the test remains on the overwritten frame
+        assertEquals(1, frames[0].getRefCount());
+        assertSame(frames[1], ring.take());
+        assertSame(frames[2], ring.take());
+    }
+
+    @Test
+    public void keepsOrderAfterWrappingAround() {
+        FrameRing ring = new FrameRing(3);
+        PreviewFrame[] frames = createFrames(6);
+        ring.offer(frames[0]);
+        ring.offer(frames[1]);
+        assertSame(frames[0], ring.take());
+        ring.offer(frames[2]);
+        ring.offer(frames[3]);
+        assertSame(frames[1], ring.take());
+        ring.offer(frames[4]);
+        ring.offer(frames[5]);
+
+        assertEquals(1, ring.getDroppedCount());
+        assertSame(frames[3], ring.take());
+        assertSame(frames[4], ring.take());
+        assertSame(frames[5], ring.take());
+    }
+
+    @Test
+    public void takeNewestDropsOlderFrames() {
+        FrameRing ring = new FrameRing(4);
+        PreviewFrame[] frames = createFrames(3);
+        for (PreviewFrame frame : frames) {
+            ring.offer(frame);
+        }
+
+        PreviewFrame frame = ring.takeNewest();
+
+        assertSame(frames[2], frame);
+        assertEquals(2, frame.getRefCount());
+        assertEquals(2, ring.getDroppedCount());
+        assertEquals(1, frames[0].getRefCount());
+        assertEquals(1, frames[1].getRefCount());
+    }
+
+    @Test
+    public void closeReleasesFramesAndWakesConsumer() throws Exception {
+        FrameRing ring = new FrameRing(2);
+        CompletableFuture<PreviewFrame> taken = new CompletableFuture<>();
+        Thread consumer = new Thread(() -> {
+            ring.take();
+            taken.complete(ring.take());
+        });
+        consumer.start();
+        PreviewFrame[] frames = createFrames(2);
+        ring.offer(frames[0]);
+        // the consumer takes the first frame and waits for the next one
+        Thread.sleep(100);
+
+        ring.close();
+
+        assertNull(taken.get(5, TimeUnit.SECONDS));
+        assertFalse(ring.offer(frames[1]));
+        assertEquals(1, frames[1].getRefCount());
+        ring.open();
+        assertTrue(ring.offer(frames[1]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyRing() {
+        new FrameRing(0);
+    }
+
+    private PreviewFrame[] createFrames(int count) {
+        PreviewFrame[] frames = new PreviewFrame[count];
+        for (int index = 0; index < count; index++) {
+            frames[index] = mPool.acquire();
+            frames[index].setSequence(index);
+        }
+        return frames;
+    }
+}
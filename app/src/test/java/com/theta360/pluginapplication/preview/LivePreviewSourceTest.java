@@ -0,0 +1,182 @@
+package com.theta360.pluginapplication.preview;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Tests of {@link LivePreviewSource}
+ */
+public class LivePreviewSourceTest {
+    private final static String BOUNDARY = "--_gc0p4Jq0M2Yt08jU534c0p";
+    private final static int FRAME_COUNT = 3;
+
+    @Test
+    public void readsPartsWithContentLength() throws IOException {
+        byte[][] jpegs = createJpegs();
+        byte[] stream = createMultipart(jpegs, "Content-Length");
+
+        assertFrames(jpegs, new LivePreviewSource(new ByteArrayInputStream(stream)));
+    }
+
+    @Test
+    public void readsPartsWithLowerCaseContentLength() throws IOException {
+        byte[][] jpegs = createJpegs();
+        byte[] stream = createMultipart(jpegs, "content-length");
+
+        assertFrames(jpegs, new LivePreviewSource(new ByteArrayInputStream(stream)));
+    }
+
+    @Test
+    public void readsPartsWithoutContentLength() throws IOException {
+        byte[][] jpegs = createJpegs();
+        byte[] stream = createMultipart(jpegs, null);
+
+        assertFrames(jpegs, new LivePreviewSource(new ByteArrayInputStream(stream)));
+    }
+
+    @Test
+    public void readsPartsSplitIntoSmallReads() throws IOException {
+        byte[][] jpegs = createJpegs();
+
+        assertFrames(jpegs, new LivePreviewSource(
+                new TrickleInputStream(createMultipart(jpegs, "Content-Length"))));
+        assertFrames(jpegs, new LivePreviewSource(
+                new TrickleInputStream(createMultipart(jpegs, null))));
+    }
+
+    @Test
+    public void readsJpegStreamWithoutParts() throws IOException {
+        byte[][] jpegs = createJpegs();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (byte[] jpeg : jpegs) {
+            os.write(jpeg);
+        }
+
+        assertFrames(jpegs, new LivePreviewSource(new ByteArrayInputStream(os.toByteArray())));
+    }
+
+    @Test
+    public void endsAtTruncatedFrame() throws IOException {
+        byte[][] jpegs = createJpegs();
+        for (String header : new String[]{"Content-Length", null}) {
+            byte[] stream = createMultipart(jpegs, header);
+            PreviewFramePool pool = new PreviewFramePool(16, 8);
+            LivePreviewSource source = new LivePreviewSource(
+                    new ByteArrayInputStream(Arrays.copyOf(stream, stream.length - 20)), pool);
+
+            for (int index = 0; index < FRAME_COUNT - 1; index++) {
+                source.nextFrame().release();
+            }
+
+            assertNull(source.nextFrame());
+            // the frame of the truncated part went back to the pool
+            assertEquals(pool.getAllocationCount(), pool.getPooledCount());
+        }
+    }
+
+    private static void assertFrames(byte[][] jpegs, LivePreviewSource source)
+            throws IOException {
+        for (int index = 0; index < jpegs.length; index++) {
+            PreviewFrame frame = source.nextFrame();
+            assertArrayEquals(jpegs[index],
+                    Arrays.copyOf(frame.getData(), frame.getLength()));
+            assertEquals(index, frame.getSequence());
+            frame.release();
+        }
+        assertNull(source.nextFrame());
+        assertEquals(jpegs.length, source.getFrameCount());
+    }
+
+    /**
+     * Create JPEG frames whose segments and entropy-coded data contain 0xFF bytes
+     */
+    private static byte[][] createJpegs() {
+        byte[][] jpegs = new byte[FRAME_COUNT][];
+        for (int index = 0; index < FRAME_COUNT; index++) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            write(os, 0xFF, 0xD8);
+            // comment segment holding an EOI marker, which must not end the frame
+            write(os, 0xFF, 0xFE, 0x00, 0x06, 0xFF, 0xD9, 'a' + index, 0xFF);
+            // quantization table segment with random-looking content
+            write(os, 0xFF, 0xDB, 0x00, 0x43);
+            for (int value = 0; value < 0x41; value++) {
+                os.write((value * 37 + index) & 0xFF);
+            }
+            write(os, 0xFF, 0xDA, 0x00, 0x04, 0x01, 0x00);
+            // entropy-coded data with stuffed bytes, a restart marker and fill bytes
+            for (int value = 0; value < 100 * (index + 1); value++) {
+                os.write(value % 251);
+            }
+            write(os, 0xFF, 0x00, 0x12, 0xFF, 0xD0, 0x34, 0xFF, 0xFF, 0xD1, 0x56);
+            write(os, 0xFF, 0xD9);
+            jpegs[index] = os.toByteArray();
+        }
+        return jpegs;
+    }
+
+    /**
+     * Create multipart stream of the device live preview
+     *
+     * @param header Name of the content length header (null if the header is omitted)
+     */
+    private static byte[] createMultipart(byte[][] jpegs, String header) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (byte[] jpeg : jpegs) {
+            StringBuilder headers = new StringBuilder();
+            headers.append(BOUNDARY).append("\r\n").append("Content-type: image/jpeg\r\n");
+            if (header != null) {
+                headers.append(header).append(": ").append(jpeg.length).append("\r\n");
+            }
+            headers.append("\r\n");
+            os.write(headers.toString().getBytes(StandardCharsets.US_ASCII));
+            os.write(jpeg);
+            os.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        return os.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream os, int... values) {
+        for (int value : values) {
+            os.write(value);
+        }
+    }
+
+    /**
+     * Stream that returns a few bytes per read, so that headers and markers are split
+     */
+    private static class TrickleInputStream extends InputStream {
+        private final byte[] mData;
+        private int mPosition = 0;
+        private int mReadCount = 0;
+
+        private TrickleInputStream(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int read() {
+            return mPosition < mData.length ? mData[mPosition++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (mPosition >= mData.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, mReadCount++ % 7 + 1),
+                    mData.length - mPosition);
+            System.arraycopy(mData, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+    }
+}